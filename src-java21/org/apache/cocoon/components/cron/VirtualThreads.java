@@ -0,0 +1,35 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which exist since Java 21.
+ * <p>
+ * This is the Java 21 version of this class, which goes into
+ * META-INF/versions/21 of the multi-release jar.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if virtual threads can be used.
+     */
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.apache.cocoon.components.cron;
+
+/**
+ * A concurrency limit that adapts to the latency and error rate of tasks,
+ * used for jobs with max-concurrent="auto".
+ * <p>
+ * Samples are collected in windows of at least {@link #MIN_WINDOW} tasks, or
+ * as many tasks as the current limit. At the end of a window, its average
+ * latency is compared to a baseline, the lowest latency seen so far, which
+ * slowly moves up so the limiter can get used to a backend that has become
+ * slower for good:
+ * <ul>
+ * <li>If more than {@link #MAX_ERROR_RATE} of the tasks failed, or the
+ * latency has gone up by more than {@link #TOLERANCE}, the limit is
+ * multiplied by the ratio between the baseline and the latency, but it
+ * decreases by at most half.</li>
+ * <li>Otherwise, when the limit was actually reached in the window, it goes
+ * up by one.</li>
+ * </ul>
+ * The limit always stays between the minimum and maximum.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class AdaptiveLimit {
+
+    private static final int MIN_WINDOW = 10;
+    private static final double MAX_ERROR_RATE = 0.1;
+    private static final double TOLERANCE = 1.5;
+    // How fast the baseline follows a higher latency.
+    private static final double BASELINE_DRIFT = 0.05;
+
+    private final int min;
+    private final int max;
+    private double limit;
+    private double baseline = -1;
+
+    private int samples = 0;
+    private int errors = 0;
+    private long totalLatency = 0;
+    private boolean limitReached = false;
+
+    /**
+     * @param initial The limit to start with.
+     * @param min The lowest limit, at least 1.
+     * @param max The highest limit.
+     */
+    public AdaptiveLimit(int initial, int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = Math.min(this.max, Math.max(this.min, initial));
+    }
+
+    /**
+     * @return The number of tasks that may run at the same time.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Add the outcome of a task.
+     *
+     * @param latency How long the task took (ms).
+     * @param failed true if the task failed or timed out.
+     * @param inFlight The number of tasks that were running when it finished,
+     * including this one.
+     * @return true if the limit changed.
+     */
+    public synchronized boolean sample(long latency, boolean failed, int inFlight) {
+        samples++;
+        totalLatency += latency;
+        if (failed) {
+            errors++;
+        }
+        if (inFlight >= (int) limit) {
+            limitReached = true;
+        }
+        if (samples < Math.max(MIN_WINDOW, (int) limit)) {
+            return false;
+        }
+        int oldLimit = (int) limit;
+        double average = Math.max(1.0, (double) totalLatency / samples);
+        if (baseline < 0 || average < baseline) {
+            baseline = average;
+        } else {
+            baseline += (average - baseline) * BASELINE_DRIFT;
+        }
+        if ((double) errors / samples > MAX_ERROR_RATE || average > baseline * TOLERANCE) {
+            limit = Math.max(min, limit * Math.max(0.5, baseline / average));
+        } else if (limitReached) {
+            limit = Math.min(max, limit + 1);
+        }
+        samples = 0;
+        errors = 0;
+        totalLatency = 0;
+        limitReached = false;
+        return oldLimit != (int) limit;
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Divides a budget of worker threads over the jobs that are running at the
+ * same time, in proportion to their weights.
+ * <p>
+ * A job with weight 4 that runs next to a job with weight 1 may have four
+ * times as many tasks in progress. The share of a job changes when other jobs
+ * start or finish, so it must be asked for again whenever the job wants to
+ * submit a task.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class FairShare {
+
+    private final int budget;
+    private final Map<Object, Integer> weights = new IdentityHashMap<Object, Integer>();
+    private int totalWeight = 0;
+
+    /**
+     * @param budget The number of threads that is divided over the jobs.
+     * Zero or less means that there is no budget, every job can use as many
+     * threads as it likes.
+     */
+    public FairShare(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Start taking part in the division.
+     *
+     * @param job An object that identifies the job.
+     * @param weight The weight of the job, at least 1.
+     */
+    public synchronized void register(Object job, int weight) {
+        Integer old = weights.put(job, Math.max(1, weight));
+        totalWeight += Math.max(1, weight) - (null == old ? 0 : old);
+    }
+
+    /**
+     * Stop taking part in the division, the share of the job goes to the
+     * other jobs.
+     *
+     * @param job An object that identifies the job.
+     */
+    public synchronized void unregister(Object job) {
+        Integer old = weights.remove(job);
+        if (null != old) {
+            totalWeight -= old;
+        }
+    }
+
+    /**
+     * The number of threads a job may currently use, at least 1.
+     *
+     * @param job An object that identifies the job.
+     * @return The share of the job, or Integer.MAX_VALUE if there is no budget.
+     */
+    public synchronized int share(Object job) {
+        Integer weight = weights.get(job);
+        if (budget <= 0 || null == weight) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(1, (int) ((long) budget * weight / totalWeight));
+    }
+
+}
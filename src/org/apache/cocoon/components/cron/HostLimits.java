@@ -0,0 +1,248 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Limits on the tasks that run against one target, the scheme and host of
+ * their URI, such as "http://api.example.org" or "cocoon:".
+ * <p>
+ * A target can have a maximum number of tasks that run at the same time, and
+ * a rate: the number of tasks that may be started per second, with bursts of
+ * at most burst tasks (a token bucket). Targets without a limit of their own
+ * get the default limit, which is no limit at all unless it is set.
+ * <p>
+ * The limits of the component are shared by all jobs, the limits of a job
+ * only count the tasks of that job. This class is thread-safe.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class HostLimits {
+
+    /**
+     * Returned by {@link #waitTime(String)} when the target runs as many tasks
+     * as it may, so a task has to finish before the next one can start.
+     */
+    public static final long BUSY = Long.MAX_VALUE;
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> limits = new HashMap<String, Limit>();
+    private final Map<String, State> states = new HashMap<String, State>();
+
+    /**
+     * @param defaultLimit The limit of targets that are not set, or null for
+     * no limit.
+     */
+    public HostLimits(Limit defaultLimit) {
+        this.defaultLimit = null == defaultLimit ? Limit.NONE : defaultLimit;
+    }
+
+    /**
+     * Set the limit of a target.
+     *
+     * @param target A URI, of which only the scheme and host are used.
+     * @param limit The limit.
+     */
+    public synchronized void setLimit(String target, Limit limit) {
+        limits.put(target(target), limit);
+    }
+
+    /**
+     * @return true if no target has a limit.
+     */
+    public synchronized boolean isEmpty() {
+        if (!defaultLimit.isUnlimited()) {
+            return false;
+        }
+        for (Limit limit : limits.values()) {
+            if (!limit.isUnlimited()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param target A target, see {@link #target(String)}.
+     * @return true if tasks of the target are limited.
+     */
+    public synchronized boolean isLimited(String target) {
+        return !limitOf(target).isUnlimited();
+    }
+
+    /**
+     * @param target A target, see {@link #target(String)}.
+     * @return 0 if a task of the target can start now, the time (ms) until
+     * the rate allows it, or {@link #BUSY}.
+     */
+    public synchronized long waitTime(String target) {
+        State state = stateOf(target);
+        return null == state ? 0 : state.waitTime(System.nanoTime());
+    }
+
+    /**
+     * Start a task of a target, if its limit allows it.
+     *
+     * @param target A target, see {@link #target(String)}.
+     * @return true if the task may start, {@link #release(String)} must be
+     * called when it has finished.
+     */
+    public synchronized boolean tryAcquire(String target) {
+        State state = stateOf(target);
+        if (null == state) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (state.waitTime(now) > 0) {
+            return false;
+        }
+        state.running++;
+        if (state.limit.rate > 0) {
+            state.tokens -= 1;
+        }
+        return true;
+    }
+
+    /**
+     * A task of the target has finished.
+     */
+    public synchronized void release(String target) {
+        State state = states.get(target);
+        if (null != state && state.running > 0) {
+            state.running--;
+        }
+    }
+
+    /**
+     * Undo {@link #tryAcquire(String)} for a task that did not start after
+     * all, and give its token back.
+     */
+    public synchronized void refund(String target) {
+        State state = states.get(target);
+        if (null != state) {
+            release(target);
+            if (state.limit.rate > 0) {
+                state.tokens = Math.min(state.limit.burst, state.tokens + 1);
+            }
+        }
+    }
+
+    /**
+     * The target of a URI: the lower case scheme and host, as
+     * "scheme://host", or "scheme:" if the URI has no host, like
+     * "cocoon:/pipeline". The port and the user are not part of it.
+     *
+     * @param uri A URI, which does not have to be valid.
+     * @return The target.
+     */
+    public static String target(String uri) {
+        int colon = uri.indexOf(':');
+        if (colon <= 0) {
+            return "";
+        }
+        String scheme = uri.substring(0, colon).toLowerCase(Locale.ROOT);
+        int start = colon + 1;
+        if (!uri.startsWith("//", start)) {
+            return scheme + ":";
+        }
+        start += 2;
+        int end = start;
+        while (end < uri.length() && "/?#".indexOf(uri.charAt(end)) < 0) {
+            end++;
+        }
+        String authority = uri.substring(start, end);
+        String host = authority.substring(authority.lastIndexOf('@') + 1);
+        int port = host.lastIndexOf(':');
+        if (port >= 0 && port > host.lastIndexOf(']')) {
+            host = host.substring(0, port);
+        }
+        return host.isEmpty() ? scheme + ":" : scheme + "://" + host.toLowerCase(Locale.ROOT);
+    }
+
+    private Limit limitOf(String target) {
+        Limit limit = limits.get(target);
+        return null == limit ? defaultLimit : limit;
+    }
+
+    /**
+     * @return The state of a target, or null if it is not limited.
+     */
+    private State stateOf(String target) {
+        State state = states.get(target);
+        if (null == state) {
+            Limit limit = limitOf(target);
+            if (limit.isUnlimited()) {
+                return null;
+            }
+            state = new State(limit);
+            states.put(target, state);
+        }
+        return state;
+    }
+
+    /**
+     * The limit of a target.
+     */
+    public static class Limit {
+
+        static final Limit NONE = new Limit(0, 0, 0);
+
+        final int maxConcurrent;
+        final double rate;
+        final double burst;
+
+        /**
+         * @param maxConcurrent The maximum number of tasks that run at the
+         * same time, 0 or less for no maximum.
+         * @param rate The number of tasks that may start per second, 0 or less
+         * for no limit.
+         * @param burst The number of tasks that may start at once, when none
+         * started for a while. Less than 1 means the rate, but at least 1.
+         */
+        public Limit(int maxConcurrent, double rate, double burst) {
+            this.maxConcurrent = Math.max(0, maxConcurrent);
+            this.rate = Math.max(0, rate);
+            this.burst = burst >= 1 ? burst : Math.max(1, this.rate);
+        }
+
+        boolean isUnlimited() {
+            return 0 == maxConcurrent && 0 == rate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("max-concurrent=%d rate=%s burst=%s", maxConcurrent, rate, burst);
+        }
+    }
+
+    private static class State {
+
+        final Limit limit;
+        int running = 0;
+        double tokens;
+        long refilled;
+
+        State(Limit limit) {
+            this.limit = limit;
+            this.tokens = limit.burst;
+            this.refilled = System.nanoTime();
+        }
+
+        long waitTime(long now) {
+            if (limit.maxConcurrent > 0 && running >= limit.maxConcurrent) {
+                return BUSY;
+            }
+            if (0 == limit.rate) {
+                return 0;
+            }
+            tokens = Math.min(limit.burst, tokens + (now - refilled) / 1e9 * limit.rate);
+            refilled = now;
+            if (tokens >= 1) {
+                return 0;
+            }
+            return Math.max(1L, (long) Math.ceil((1 - tokens) / limit.rate * 1000));
+        }
+    }
+
+}
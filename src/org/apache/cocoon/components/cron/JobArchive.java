@@ -0,0 +1,320 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The zip file of a finished job, which is written while the job runs.
+ * <p>
+ * All entries are in one folder, named after the job. The task results are
+ * added as they are written (see {@link TaskResultsWriter}), so only the small
+ * files that are left when the job has finished still need to be added.
+ * <p>
+ * With level {@link #STORED}, files are added without compression. The task
+ * results can not be stored that way while they are being written, because
+ * a stored entry needs its size and checksum up front, so they are deflated
+ * with {@link Deflater#NO_COMPRESSION}, which costs about as little.
+ * <p>
+ * Every {@link #ACCESS_POINT_INTERVAL} bytes, the deflater of an entry is
+ * flushed so that decompression can start there, without the data before it.
+ * The {@link AccessPoints} of an entry tell where these points are, so that
+ * the result of one task can be read without inflating the entire entry (see
+ * {@link TaskResultsIndex}).
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class JobArchive implements Closeable {
+
+    /**
+     * The compression level for entries that are not compressed at all.
+     */
+    public static final int STORED = -2;
+
+    /**
+     * The number of uncompressed bytes between access points.
+     */
+    public static final int ACCESS_POINT_INTERVAL = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final String folder;
+    private final int level;
+    private final CountingOutputStream counter;
+    private final AccessibleZipOutputStream zip;
+    private final Map<String, AccessPoints> entries = new HashMap<String, AccessPoints>();
+    // The entry that is written with write(), or null.
+    private AccessPoints current = null;
+    private int sinceAccessPoint = 0;
+    private boolean broken = false;
+    private boolean closed = false;
+
+    /**
+     * Create the archive, replacing what is in the file.
+     *
+     * @param file The zip file.
+     * @param folder The name of the folder the entries are in, without "/".
+     * @param level The compression level, {@link Deflater#DEFAULT_COMPRESSION}
+     * or {@link #STORED}.
+     */
+    public JobArchive(File file, String folder, int level) throws IOException {
+        this.file = file;
+        this.folder = folder + "/";
+        this.level = level;
+        this.counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        this.zip = new AccessibleZipOutputStream(counter);
+        this.zip.setLevel(STORED == level ? Deflater.NO_COMPRESSION : level);
+        try {
+            zip.putNextEntry(new ZipEntry(this.folder));
+            zip.closeEntry();
+        } catch (IOException ex) {
+            abandon();
+            throw ex;
+        }
+    }
+
+    /**
+     * Parse a compression level: "stored", "default" or 0 to 9.
+     */
+    public static int parseLevel(String value) {
+        if (null == value || "default".equals(value)) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        if ("stored".equals(value)) {
+            return STORED;
+        }
+        int level = Integer.parseInt(value);
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + value);
+        }
+        return level;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if writing the archive failed, or it was abandoned.
+     */
+    public synchronized boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * @param name A file name.
+     * @return true if the archive has an entry for the file.
+     */
+    public synchronized boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @param name A file name.
+     * @return Where the content of the file can be read in the archive, or
+     * null if it is not in the archive.
+     */
+    public synchronized AccessPoints getAccessPoints(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Start an entry whose content is written with {@link #write(byte[], int, int)}.
+     * The entry is deflated, whatever the level.
+     *
+     * @param name The file name, the entry is in the job's folder.
+     */
+    public synchronized void putEntry(String name) throws IOException {
+        zip.putNextEntry(new ZipEntry(folder + name));
+        current = new AccessPoints(false, counter.count);
+        sinceAccessPoint = 0;
+        entries.put(name, current);
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        zip.write(bytes, offset, length);
+        current.size += length;
+        sinceAccessPoint += length;
+        if (sinceAccessPoint >= ACCESS_POINT_INTERVAL) {
+            zip.fullFlush();
+            current.add(current.size, counter.count);
+            sinceAccessPoint = 0;
+        }
+    }
+
+    public synchronized void closeEntry() throws IOException {
+        zip.closeEntry();
+        current = null;
+    }
+
+    /**
+     * Add a file as one entry.
+     *
+     * @param source The file.
+     */
+    public synchronized void addFile(File source) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (STORED != level) {
+            putEntry(source.getName());
+            try (InputStream in = new FileInputStream(source)) {
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    write(buffer, 0, length);
+                }
+            }
+            closeEntry();
+            return;
+        }
+        ZipEntry entry = new ZipEntry(folder + source.getName());
+        CRC32 crc = new CRC32();
+        try (InputStream in = new FileInputStream(source)) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, length);
+            }
+        }
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(source.length());
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        AccessPoints points = new AccessPoints(true, counter.count);
+        try (InputStream in = new FileInputStream(source)) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                zip.write(buffer, 0, length);
+                points.size += length;
+            }
+        }
+        zip.closeEntry();
+        entries.put(source.getName(), points);
+    }
+
+    /**
+     * Stop writing the archive after an error. What has been written can not
+     * be used.
+     */
+    public synchronized void abandon() {
+        broken = true;
+        closed = true;
+        try {
+            zip.close();
+        } catch (IOException ex) {
+            // It is already broken.
+        }
+    }
+
+    /**
+     * Write the central directory and close the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        zip.close();
+    }
+
+    /**
+     * The places in the archive where reading the content of an entry can
+     * start. Each access point is an offset in the uncompressed content and
+     * the position in the zip file where the data from that offset on begins.
+     * A stored entry only has the access point at offset 0, because every
+     * offset can be found from there.
+     */
+    static class AccessPoints {
+
+        private final boolean stored;
+        private final List<long[]> points = new ArrayList<long[]>();
+        private long size = 0;
+
+        AccessPoints(boolean stored, long dataStart) {
+            this.stored = stored;
+            add(0, dataStart);
+        }
+
+        private void add(long offset, long position) {
+            points.add(new long[] {offset, position});
+        }
+
+        /**
+         * @return true if the entry is not compressed.
+         */
+        public boolean isStored() {
+            return stored;
+        }
+
+        /**
+         * @return The {offset, position} pairs, in order.
+         */
+        public List<long[]> getPoints() {
+            return points;
+        }
+
+        /**
+         * @return The number of uncompressed bytes that have been written.
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Counts the bytes of the zip file, which gives the position of the
+     * access points.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * A ZipOutputStream that can end a deflate block with a full flush, after
+     * which decompression can start without the data that came before.
+     */
+    private static class AccessibleZipOutputStream extends ZipOutputStream {
+
+        AccessibleZipOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void fullFlush() throws IOException {
+            int length;
+            while ((length = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) {
+                out.write(buf, 0, length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import org.apache.avalon.framework.logger.Logger;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.WildcardFileFilter;
+
+/**
+ * Keeps an index of the job files in the "in" directories of a queue, ordered
+ * by modification time, and reports new jobs as soon as they appear.
+ * <p>
+ * The index is filled by listing the directories once, and kept up to date
+ * by a {@link WatchService}. Looking for the oldest job does not touch the
+ * file system. Files that are in the index may already have been claimed by
+ * another node, so the caller must be prepared for files that no longer
+ * exist.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class JobDirectoryWatcher implements Closeable {
+
+    private static final String JOB_FILES = "job-*.xml";
+
+    private final WatchService watchService;
+    private final Map<WatchKey, JobIndex> indexes = new HashMap<WatchKey, JobIndex>();
+    private final Map<File, JobIndex> indexesByDir = new HashMap<File, JobIndex>();
+    private final Runnable onNewJob;
+    private final Logger logger;
+    private final Thread watcherThread;
+
+    /**
+     * Index the directories and start watching them.
+     *
+     * @param dirs The directories where jobs are submitted, they must exist.
+     * @param onNewJob Called (in the watcher thread) when a job file is added.
+     * @param logger For logging.
+     */
+    public JobDirectoryWatcher(File[] dirs, Runnable onNewJob, Logger logger) throws IOException {
+        this.onNewJob = onNewJob;
+        this.logger = logger;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (File dir : dirs) {
+                WatchKey key = dir.toPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                JobIndex index = new JobIndex(dir.getAbsoluteFile());
+                index.rescan();
+                indexes.put(key, index);
+                indexesByDir.put(index.dir, index);
+            }
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        this.watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "queue-processor-watcher");
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * Get the oldest jobs in a watched directory, oldest first.
+     *
+     * @param dir The directory.
+     * @param max The maximum number of jobs to return.
+     * @return The job files, or null if the directory is not watched.
+     */
+    public File[] getJobFilesOldestFirst(File dir, int max) {
+        JobIndex index = indexesByDir.get(dir.getAbsoluteFile());
+        return null == index ? null : index.oldestFirst(max);
+    }
+
+    /**
+     * Count the jobs in a watched directory.
+     *
+     * @param dir The directory.
+     * @return The number of job files, or -1 if the directory is not watched.
+     */
+    public int countJobFiles(File dir) {
+        JobIndex index = indexesByDir.get(dir.getAbsoluteFile());
+        return null == index ? -1 : index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watcherThread.interrupt();
+    }
+
+    /**
+     * Body of the watcher thread.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            } catch (InterruptedException ex) {
+                return;
+            }
+            JobIndex index = indexes.get(key);
+            boolean added = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    logger.warn("Too many changes in " + index.dir + ", listing it again.");
+                    added |= index.rescan();
+                    continue;
+                }
+                String name = ((Path) event.context()).toString();
+                if (!FilenameUtils.wildcardMatch(name, JOB_FILES)) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    index.remove(name);
+                } else {
+                    added |= index.update(name);
+                }
+            }
+            if (!key.reset()) {
+                logger.error("Can no longer watch " + index.dir + ", new jobs are only found by polling.");
+            }
+            if (added) {
+                try {
+                    onNewJob.run();
+                } catch (RuntimeException ex) {
+                    logger.error("Error starting new job", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The job files in one directory, ordered by modification time and name.
+     */
+    private static class JobIndex {
+
+        private final File dir;
+        private final Map<String, Entry> byName = new HashMap<String, Entry>();
+        private final TreeSet<Entry> byAge = new TreeSet<Entry>();
+
+        JobIndex(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * List the directory and replace the index.
+         *
+         * @return true if there are jobs.
+         */
+        synchronized boolean rescan() {
+            byName.clear();
+            byAge.clear();
+            File[] files = dir.listFiles((FileFilter) new WildcardFileFilter(JOB_FILES));
+            if (null != files) {
+                for (File file : files) {
+                    add(file.getName(), file.lastModified());
+                }
+            }
+            return !byName.isEmpty();
+        }
+
+        /**
+         * A job file was created or modified.
+         *
+         * @return true if the job was not in the index yet.
+         */
+        synchronized boolean update(String name) {
+            boolean isNew = null == remove(name);
+            long lastModified = new File(dir, name).lastModified();
+            if (0L == lastModified) {
+                return false; // Already gone.
+            }
+            add(name, lastModified);
+            return isNew;
+        }
+
+        synchronized Entry remove(String name) {
+            Entry entry = byName.remove(name);
+            if (null != entry) {
+                byAge.remove(entry);
+            }
+            return entry;
+        }
+
+        synchronized File[] oldestFirst(int max) {
+            File[] files = new File[Math.min(max, byAge.size())];
+            Iterator<Entry> entries = byAge.iterator();
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(dir, entries.next().name);
+            }
+            return files;
+        }
+
+        synchronized int size() {
+            return byAge.size();
+        }
+
+        private void add(String name, long lastModified) {
+            Entry entry = new Entry(name, lastModified);
+            byName.put(name, entry);
+            byAge.add(entry);
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        final String name;
+        final long lastModified;
+
+        Entry(String name, long lastModified) {
+            this.name = name;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Long.compare(lastModified, other.lastModified);
+            return 0 != c ? c : name.compareTo(other.name);
+        }
+    }
+
+}
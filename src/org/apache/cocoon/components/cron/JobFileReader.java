@@ -0,0 +1,538 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.JobConfig;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.Task;
+
+/**
+ * Streaming reader for job-*.xml files.
+ * <p>
+ * The job attributes, and the host-limits of the job, are read when the
+ * reader is opened, the tasks are read one at a time by {@link #nextTask()}.
+ * Only the task that is returned is kept in memory, so a job with a very large
+ * number of tasks can be processed without building a DOM of the whole job
+ * file.
+ * <p>
+ * The content of a task is serialized while it is read, so it can be posted
+ * as it is, without building a DOM and serializing that for every task.
+ * <p>
+ * The structure of a job file is described in {@link QueueProcessorCronJob}.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class JobFileReader implements Closeable {
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private static final int TASK_DEPTH = 3; // job/tasks/task
+    private static final int TASKS_DEPTH = 2;
+
+    // A task without content posts an empty document, as it did with XPath.
+    private static final byte[] NO_CONTENT = new byte[0];
+
+    // The declaration the serialized content starts with, as the JAXP serializer wrote it.
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private final InputStream is;
+    private final XMLStreamReader reader;
+    private final JobConfig jobConfig;
+    private final StringBuilder contentBuffer = new StringBuilder();
+    private int depth = 0;
+    // The name of the child of the job element that the reader is in.
+    private String section = null;
+
+    /**
+     * Open a job file and read the attributes of the job element.
+     *
+     * @param jobFile The job-*.xml file.
+     */
+    public JobFileReader(File jobFile) throws IOException, XMLStreamException, ParseException {
+        this(new BufferedInputStream(new FileInputStream(jobFile)));
+    }
+
+    /**
+     * Read a job that is in memory, and read the attributes of the job
+     * element.
+     *
+     * @param job The job-*.xml document.
+     */
+    public JobFileReader(byte[] job) throws IOException, XMLStreamException, ParseException {
+        this(new ByteArrayInputStream(job));
+    }
+
+    private JobFileReader(InputStream is) throws IOException, XMLStreamException, ParseException {
+        this.is = is;
+        try {
+            this.reader = inputFactory.createXMLStreamReader(is);
+            this.jobConfig = readJobElement();
+        } catch (XMLStreamException | ParseException | RuntimeException ex) {
+            is.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * The attributes of the job. The tasks member is not filled in, use
+     * {@link #nextTask()} to get the tasks.
+     *
+     * @return JobConfig
+     */
+    public JobConfig getJobConfig() {
+        return jobConfig;
+    }
+
+    /**
+     * Read the next task from the job file.
+     *
+     * @return The next task, or null if there are no more tasks.
+     * @throws XMLStreamException
+     */
+    public Task nextTask() throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (depth == TASKS_DEPTH) {
+                    section = reader.getLocalName();
+                } else if (depth == TASK_DEPTH && "tasks".equals(section) && "task".equals(reader.getLocalName())) {
+                    Task task = readTask();
+                    depth--;
+                    return task;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Count the tasks in a job file, without keeping any of them in memory.
+     *
+     * @param jobFile The job-*.xml file.
+     * @return The number of task elements.
+     */
+    public static int countTasks(File jobFile) throws IOException, XMLStreamException {
+        return countTasks(jobFile, null);
+    }
+
+    /**
+     * Count the tasks in a job file, and collect the ids of the tasks that
+     * other tasks depend on.
+     *
+     * @param jobFile The job-*.xml file.
+     * @param dependencies The ids in the depends-on attributes are added to
+     * this, if it is not null.
+     * @return The number of task elements.
+     */
+    public static int countTasks(File jobFile, Set<String> dependencies) throws IOException, XMLStreamException {
+        return countTasks(new BufferedInputStream(new FileInputStream(jobFile)), dependencies);
+    }
+
+    /**
+     * Count the tasks in a job that is in memory, see
+     * {@link #countTasks(File, Set)}.
+     *
+     * @param job The job-*.xml document.
+     * @param dependencies The ids in the depends-on attributes are added to
+     * this, if it is not null.
+     * @return The number of task elements.
+     */
+    public static int countTasks(byte[] job, Set<String> dependencies) throws IOException, XMLStreamException {
+        return countTasks(new ByteArrayInputStream(job), dependencies);
+    }
+
+    private static int countTasks(InputStream in, Set<String> dependencies) throws IOException, XMLStreamException {
+        try {
+            XMLStreamReader r = inputFactory.createXMLStreamReader(in);
+            int count = 0;
+            int d = 0;
+            String s = null;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    d++;
+                    if (d == TASKS_DEPTH) {
+                        s = r.getLocalName();
+                    } else if (d == TASK_DEPTH && "tasks".equals(s) && "task".equals(r.getLocalName())) {
+                        count++;
+                        String[] ids = null == dependencies ? null : dependencies(r.getAttributeValue(null, "depends-on"));
+                        if (null != ids) {
+                            Collections.addAll(dependencies, ids);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    d--;
+                }
+            }
+            r.close();
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Advance to the job element and read its attributes, and the elements
+     * before the tasks.
+     */
+    private JobConfig readJobElement() throws XMLStreamException, ParseException {
+        while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+        }
+        if (!reader.isStartElement()) {
+            throw new XMLStreamException("Job file does not contain a job element.");
+        }
+        depth = 1;
+        JobConfig config = new JobConfig();
+        config.id = attribute("id");
+        config.description = attribute("description");
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        config.created = format.parse(attribute("created"));
+        if ("auto".equals(attribute("max-concurrent"))) {
+            config.adaptiveConcurrency = true;
+        } else {
+            config.maxConcurrent = Integer.parseInt(attribute("max-concurrent"));
+        }
+        config.taskTimeout = attribute("task-timeout").equals("") ? 0L : Long.parseLong(attribute("task-timeout"));
+        config.speculative = Boolean.valueOf(attribute("speculative"));
+        config.cache = Boolean.valueOf(attribute("cache"));
+        config.name = attribute("name");
+        config.priority = attribute("priority");
+        // Read up to the tasks, the elements before them apply to the whole job.
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("host-limits".equals(reader.getLocalName())) {
+                    config.hostLimits = readHostLimits();
+                } else {
+                    depth = TASKS_DEPTH;
+                    section = reader.getLocalName();
+                    break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth = 0;
+                break;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Read a host-limits element and its host elements, see
+     * {@link QueueProcessorCronJob}.
+     */
+    private HostLimits readHostLimits() throws XMLStreamException {
+        HostLimits limits = new HostLimits(readLimit());
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (!"host".equals(reader.getLocalName()) || attribute("target").isEmpty()) {
+                    throw new XMLStreamException("host-limits may only contain host elements with a target attribute.", reader.getLocation());
+                }
+                limits.setLimit(attribute("target"), readLimit());
+            } else if (event == XMLStreamConstants.END_ELEMENT && "host-limits".equals(reader.getLocalName())) {
+                return limits;
+            }
+        }
+        throw new XMLStreamException("Unterminated host-limits element.");
+    }
+
+    /**
+     * The max-concurrent, rate and burst attributes of the current element.
+     */
+    private HostLimits.Limit readLimit() throws XMLStreamException {
+        try {
+            return new HostLimits.Limit(
+                    attribute("max-concurrent").isEmpty() ? 0 : Integer.parseInt(attribute("max-concurrent")),
+                    attribute("rate").isEmpty() ? 0 : Double.parseDouble(attribute("rate")),
+                    attribute("burst").isEmpty() ? 0 : Double.parseDouble(attribute("burst")));
+        } catch (NumberFormatException ex) {
+            throw new XMLStreamException("Invalid limit on " + reader.getLocalName() + ": " + ex.getMessage(), reader.getLocation());
+        }
+    }
+
+    /**
+     * Read a task element. The reader is positioned on the start tag, and
+     * will be positioned on the end tag when this method returns.
+     */
+    private Task readTask() throws XMLStreamException {
+        Task task = new Task();
+        task.id = attribute("id");
+        task.dependsOn = dependencies(attribute("depends-on"));
+        task.uri = "";
+        boolean hasUri = false;
+        boolean hasContent = false;
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if ("uri".equals(name) && !hasUri) {
+                task.uri = readText();
+                hasUri = true;
+            } else if ("content".equals(name) && !hasContent) {
+                task.content = readContent();
+                hasContent = true;
+            } else {
+                skipElement();
+            }
+        }
+        if (!hasContent) {
+            task.content = NO_CONTENT;
+        }
+        return task;
+    }
+
+    /**
+     * Serialize the child elements of a content element, the way they are
+     * posted to the uri of the task. Text between these elements is ignored,
+     * like the "content/*" XPath used to do. Prefixes that are declared
+     * outside of the content element are declared where they are used.
+     *
+     * @return The serialized elements in UTF-8, after an XML declaration, or
+     * no bytes if there are no elements.
+     */
+    private byte[] readContent() throws XMLStreamException {
+        StringBuilder out = contentBuffer;
+        out.setLength(0);
+        // The prefix mappings that are declared in the content, innermost last.
+        List<String[]> scope = new ArrayList<String[]>();
+        List<Integer> marks = new ArrayList<Integer>();
+        while (true) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (marks.isEmpty() && 0 == out.length()) {
+                        out.append(XML_DECLARATION);
+                    }
+                    marks.add(scope.size());
+                    out.append('<');
+                    appendQName(out, reader.getPrefix(), reader.getLocalName());
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        declare(out, scope, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+                    }
+                    ensureDeclared(out, scope, reader.getPrefix(), reader.getNamespaceURI());
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String prefix = reader.getAttributePrefix(i);
+                        if (null != prefix && !prefix.isEmpty()) {
+                            ensureDeclared(out, scope, prefix, reader.getAttributeNamespace(i));
+                        }
+                        out.append(' ');
+                        appendQName(out, prefix, reader.getAttributeLocalName(i));
+                        out.append("=\"");
+                        escape(out, reader.getAttributeValue(i), true);
+                        out.append('"');
+                    }
+                    out.append('>');
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (marks.isEmpty()) {
+                        return out.toString().getBytes(StandardCharsets.UTF_8);
+                    }
+                    out.append("</");
+                    appendQName(out, reader.getPrefix(), reader.getLocalName());
+                    out.append('>');
+                    int mark = marks.remove(marks.size() - 1);
+                    while (scope.size() > mark) {
+                        scope.remove(scope.size() - 1);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (!marks.isEmpty()) {
+                        escape(out, reader.getText(), false);
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (!marks.isEmpty()) {
+                        out.append("<!--").append(reader.getText()).append("-->");
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (!marks.isEmpty()) {
+                        out.append("<?").append(reader.getPITarget());
+                        String data = reader.getPIData();
+                        if (null != data && !data.isEmpty()) {
+                            out.append(' ').append(data);
+                        }
+                        out.append("?>");
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Declare a prefix on the element that is being written.
+     */
+    private static void declare(StringBuilder out, List<String[]> scope, String prefix, String uri) {
+        prefix = null == prefix ? "" : prefix;
+        uri = null == uri ? "" : uri;
+        out.append(prefix.isEmpty() ? " xmlns" : " xmlns:").append(prefix).append("=\"");
+        escape(out, uri, true);
+        out.append('"');
+        scope.add(new String[] {prefix, uri});
+    }
+
+    /**
+     * Declare a prefix on the element that is being written, unless it is
+     * already bound to the namespace.
+     */
+    private static void ensureDeclared(StringBuilder out, List<String[]> scope, String prefix, String uri) {
+        prefix = null == prefix ? "" : prefix;
+        uri = null == uri ? "" : uri;
+        String bound = "";
+        for (int i = scope.size() - 1; i >= 0; i--) {
+            if (scope.get(i)[0].equals(prefix)) {
+                bound = scope.get(i)[1];
+                break;
+            }
+        }
+        if (!bound.equals(uri)) {
+            declare(out, scope, prefix, uri);
+        }
+    }
+
+    private static void appendQName(StringBuilder out, String prefix, String localName) {
+        if (null != prefix && !prefix.isEmpty()) {
+            out.append(prefix).append(':');
+        }
+        out.append(localName);
+    }
+
+    private static void escape(StringBuilder out, String text, boolean attribute) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append(attribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                    out.append(attribute ? "&#10;" : "\n");
+                    break;
+                case '\r':
+                    out.append("&#13;");
+                    break;
+                case '\t':
+                    out.append(attribute ? "&#9;" : "\t");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * The text in the element the reader is positioned on, including the
+     * text in its child elements, like the string value of the element in
+     * XPath. The reader is positioned on the end tag when this returns.
+     */
+    private String readText() throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int level = 1;
+        while (level > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    level--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    text.append(reader.getText());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Skip the element the reader is positioned on, including its content.
+     */
+    private void skipElement() throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+
+    /**
+     * The ids in a depends-on attribute, or null if there are none.
+     */
+    private static String[] dependencies(String dependsOn) {
+        if (null == dependsOn || dependsOn.trim().isEmpty()) {
+            return null;
+        }
+        return dependsOn.trim().split("\\s+");
+    }
+
+    /**
+     * The value of an attribute of the current element, or "" if it is absent.
+     */
+    private String attribute(String name) {
+        String value = reader.getAttributeValue(null, name);
+        return null == value ? "" : value;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a new job file for a queue, so that the queue processor never sees a
+ * partially written job.
+ * <p>
+ * The job is written to a temporary file in the directory where it is
+ * submitted, which does not match "job-*.xml". {@link #commit()} forces it to
+ * disk and atomically renames it to "job-{id}.xml". A submission that is closed
+ * without being committed removes the temporary file.
+ * <p>
+ * When the queue is processed with in-memory="true" in this JVM, the job is
+ * written to memory instead, and {@link #commit()} submits it to the
+ * {@link MemoryQueue}. The job file then never exists.
+ * <pre>
+ * {@code
+ * try (JobSubmission submission = new JobSubmission(inDir, id)) {
+ *     write the job to submission.getOutputStream()
+ *     submission.commit();
+ * }
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class JobSubmission implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String jobId;
+    private final File tempFile;
+    private final File jobFile;
+    private final FileOutputStream file;
+    private final OutputStream out;
+    // The in-memory queue the job is submitted to, or null.
+    private final MemoryQueue memoryQueue;
+    private final File dir;
+    private boolean committed = false;
+
+    /**
+     * Start writing a job.
+     *
+     * @param dir The directory the job is submitted to, "in" or one of its
+     * priority lanes. It is created if necessary.
+     * @param jobId The id of the job, which is part of its file name.
+     */
+    public JobSubmission(File dir, String jobId) throws IOException {
+        if (jobId.isEmpty() || jobId.contains("/") || jobId.contains("\\")) {
+            throw new IOException("Invalid job id \"" + jobId + "\"");
+        }
+        this.jobId = jobId;
+        this.dir = dir;
+        this.jobFile = new File(dir, String.format("job-%s.xml", jobId));
+        this.memoryQueue = MemoryQueue.forDirectory(dir);
+        if (null != memoryQueue) {
+            this.tempFile = null;
+            this.file = null;
+            this.out = new ByteArrayOutputStream(BUFFER_SIZE);
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        this.tempFile = new File(dir, String.format(".job-%s.xml.part", jobId));
+        this.file = new FileOutputStream(tempFile);
+        this.out = new BufferedOutputStream(file, BUFFER_SIZE);
+    }
+
+    /**
+     * @return The stream the job file is written to. Do not close it.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return The file the job will have when it is committed, which is only
+     * a name for a job in an in-memory queue.
+     */
+    public File getJobFile() {
+        return jobFile;
+    }
+
+    /**
+     * Put the job in the queue.
+     *
+     * @return The job file.
+     * @throws IOException If the job could not be written, or a job with the
+     * same id is already waiting.
+     */
+    public File commit() throws IOException {
+        if (null != memoryQueue) {
+            memoryQueue.submit(jobId, memoryQueue.laneOf(dir), ((ByteArrayOutputStream) out).toByteArray());
+            committed = true;
+            return jobFile;
+        }
+        out.flush();
+        file.getFD().sync();
+        out.close();
+        if (jobFile.exists()) {
+            throw new IOException("Job " + jobFile + " already exists");
+        }
+        Files.move(tempFile.toPath(), jobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        return jobFile;
+    }
+
+    /**
+     * Remove the temporary file, unless the job was committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed || null != memoryQueue) {
+            return;
+        }
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.zip.CRC32;
+import org.apache.avalon.framework.logger.Logger;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.JobPriority;
+
+/**
+ * The jobs of a queue that is processed with in-memory="true".
+ * <p>
+ * Jobs that are submitted to such a queue (see {@link JobSubmission}) are not
+ * written to the "in" directory, they are kept in a priority queue in memory:
+ * jobs with a higher priority first, and jobs with the same priority in the
+ * order in which they were submitted.
+ * <p>
+ * To survive a crash, the jobs are recorded in a write-ahead log,
+ * "queue.wal" in the queue directory. A job is appended to the log, and the
+ * log is forced to disk, before it is accepted. When a job has finished, that
+ * is appended as well. When the queue is opened, the jobs in the log that did
+ * not finish are queued again, and run from the start. Every record has a
+ * checksum, a record that was only partially written is dropped.
+ * <p>
+ * The log is emptied whenever the queue has no jobs, and rewritten with only
+ * the unfinished jobs when it gets large, so it stays small.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class MemoryQueue implements Closeable {
+
+    public static final String LOG_FILE = "queue.wal";
+
+    private static final byte SUBMITTED = 'S';
+    private static final byte FINISHED = 'F';
+
+    // Rewrite the log when it is larger than this, and mostly contains finished jobs.
+    private static final long COMPACT_SIZE = 16 * 1024 * 1024;
+
+    // The queues of this JVM, by lane directory.
+    private static final Map<String, MemoryQueue> QUEUES = new ConcurrentHashMap<String, MemoryQueue>();
+
+    private final File inDir;
+    private final File logFile;
+    private final Logger logger;
+    private final PriorityBlockingQueue<Job> pending = new PriorityBlockingQueue<Job>();
+    // The jobs that have not finished, waiting or running, by id.
+    private final Map<String, Job> unfinished = new HashMap<String, Job>();
+    private FileOutputStream log;
+    private long logSize;
+    private long unfinishedSize = 0;
+    private long nextSequence = 1;
+    private Runnable listener = null;
+
+    /**
+     * Open the queue, and queue the jobs in its log that did not finish.
+     *
+     * @param queueDir The directory of the queue.
+     * @param inDir The "in" directory of the queue, whose lanes are the
+     * directories jobs are submitted to.
+     * @param logger For logging recovered jobs.
+     */
+    public MemoryQueue(File queueDir, File inDir, Logger logger) throws IOException {
+        this.inDir = inDir;
+        this.logFile = new File(queueDir, LOG_FILE);
+        this.logger = logger;
+        queueDir.mkdirs();
+        boolean clean = recover();
+        this.log = new FileOutputStream(logFile, true);
+        this.logSize = logFile.length();
+        if (!clean) {
+            rewriteLog();
+        }
+        if (!unfinished.isEmpty() && logger.isInfoEnabled()) {
+            logger.info(String.format("Recovered %d unfinished jobs from %s", unfinished.size(), logFile));
+        }
+    }
+
+    /**
+     * @param dir A directory jobs are submitted to.
+     * @return The in-memory queue that jobs submitted to the directory go to,
+     * or null if they are written to the directory.
+     */
+    public static MemoryQueue forDirectory(File dir) {
+        return QUEUES.get(key(dir));
+    }
+
+    /**
+     * Let jobs that are submitted to the lanes of this queue go to this queue.
+     */
+    public void register() {
+        for (JobPriority lane : JobPriority.values()) {
+            QUEUES.put(key(lane.laneDirectory(inDir)), this);
+        }
+    }
+
+    /**
+     * @param dir One of the lane directories of the queue.
+     * @return The lane of the directory.
+     */
+    public JobPriority laneOf(File dir) {
+        for (JobPriority lane : JobPriority.values()) {
+            if (key(lane.laneDirectory(inDir)).equals(key(dir))) {
+                return lane;
+            }
+        }
+        return JobPriority.NORMAL;
+    }
+
+    /**
+     * @param listener Called after a job has been submitted.
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add a job to the queue. It has been written to the log when this
+     * returns.
+     *
+     * @param id The id of the job.
+     * @param lane The lane it was submitted to.
+     * @param content The job-*.xml document.
+     * @throws IOException If the log could not be written, or a job with the
+     * same id has not finished yet.
+     */
+    public void submit(String id, JobPriority lane, byte[] content) throws IOException {
+        synchronized (this) {
+            if (unfinished.containsKey(id)) {
+                throw new IOException("Job " + id + " already exists");
+            }
+            Job job = new Job(nextSequence++, id, lane, content);
+            byte[] record = submittedRecord(job);
+            log.write(record);
+            log.getFD().sync();
+            logSize += record.length;
+            job.recordSize = record.length;
+            unfinished.put(id, job);
+            unfinishedSize += job.recordSize;
+            pending.add(job);
+        }
+        Runnable l = listener;
+        if (null != l) {
+            l.run();
+        }
+    }
+
+    /**
+     * @return The next job, which is removed from the queue, or null if there
+     * are no jobs waiting.
+     */
+    public Job poll() {
+        return pending.poll();
+    }
+
+    /**
+     * @return The number of jobs that are waiting.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Record that a job has finished, so it is not run again after a crash.
+     * This is not forced to disk, a job that finished just before a crash may
+     * run again.
+     *
+     * @param job A job that was returned by {@link #poll()}.
+     */
+    public synchronized void finish(Job job) throws IOException {
+        unfinished.remove(job.id);
+        unfinishedSize -= job.recordSize;
+        if (unfinished.isEmpty()) {
+            log.getChannel().truncate(0);
+            logSize = 0;
+        } else if (logSize > COMPACT_SIZE && 2 * unfinishedSize < logSize) {
+            rewriteLog();
+        } else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(buffer);
+            payload.writeByte(FINISHED);
+            payload.writeLong(job.sequence);
+            byte[] record = record(buffer.toByteArray());
+            log.write(record);
+            logSize += record.length;
+        }
+    }
+
+    /**
+     * Stop accepting jobs and close the log. Jobs that have not finished stay
+     * in the log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (JobPriority lane : JobPriority.values()) {
+            QUEUES.remove(key(lane.laneDirectory(inDir)), this);
+        }
+        log.close();
+    }
+
+    /**
+     * Read the log and queue the jobs that did not finish.
+     *
+     * @return true if the log contains nothing but those jobs.
+     */
+    private boolean recover() throws IOException {
+        if (!logFile.exists()) {
+            return true;
+        }
+        Map<Long, Job> jobs = new TreeMap<Long, Job>();
+        boolean clean = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > logFile.length()) {
+                        throw new EOFException();
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    int checksum = in.readInt();
+                    if (checksum != checksum(payload)) {
+                        throw new EOFException();
+                    }
+                } catch (EOFException ex) {
+                    // The end of the log, or a record that was not written completely.
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long sequence = record.readLong();
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (SUBMITTED == type) {
+                    JobPriority lane = JobPriority.values()[record.readByte()];
+                    String id = record.readUTF();
+                    byte[] content = new byte[record.readInt()];
+                    record.readFully(content);
+                    Job job = new Job(sequence, id, lane, content);
+                    job.recordSize = payload.length + 8;
+                    jobs.put(sequence, job);
+                } else {
+                    jobs.remove(sequence);
+                    clean = false;
+                }
+            }
+        }
+        for (Job job : jobs.values()) {
+            if (logger.isInfoEnabled()) {
+                logger.info(String.format("Job %s did not finish, queueing it again.", job.id));
+            }
+            unfinished.put(job.id, job);
+            unfinishedSize += job.recordSize;
+            pending.add(job);
+        }
+        return clean;
+    }
+
+    /**
+     * Replace the log by one that only has the unfinished jobs.
+     */
+    private void rewriteLog() throws IOException {
+        List<Job> jobs = new ArrayList<Job>(unfinished.values());
+        Collections.sort(jobs);
+        File newLog = new File(logFile.getParentFile(), LOG_FILE + ".part");
+        long size = 0;
+        try (FileOutputStream out = new FileOutputStream(newLog)) {
+            for (Job job : jobs) {
+                byte[] record = submittedRecord(job);
+                out.write(record);
+                job.recordSize = record.length;
+                size += record.length;
+            }
+            out.getFD().sync();
+        }
+        log.close();
+        Files.move(newLog.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log = new FileOutputStream(logFile, true);
+        logSize = size;
+        unfinishedSize = size;
+    }
+
+    private static byte[] submittedRecord(Job job) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(job.content.length + 64);
+        DataOutputStream payload = new DataOutputStream(buffer);
+        payload.writeByte(SUBMITTED);
+        payload.writeLong(job.sequence);
+        payload.writeByte(job.lane.ordinal());
+        payload.writeUTF(job.id);
+        payload.writeInt(job.content.length);
+        payload.write(job.content);
+        return record(buffer.toByteArray());
+    }
+
+    /**
+     * A record of the log: the length of the payload, the payload and its
+     * checksum.
+     */
+    private static byte[] record(byte[] payload) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(checksum(payload));
+        return buffer.toByteArray();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static String key(File dir) {
+        return dir.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * A job in the queue.
+     */
+    static class Job implements Comparable<Job> {
+
+        final long sequence;
+        final String id;
+        final JobPriority lane;
+        final byte[] content;
+        // The size of the job in the log.
+        int recordSize;
+
+        Job(long sequence, String id, JobPriority lane, byte[] content) {
+            this.sequence = sequence;
+            this.id = id;
+            this.lane = lane;
+            this.content = content;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+}
@@ -2,7 +2,6 @@ package org.apache.cocoon.components.cron;
 
 import com.thoughtworks.xstream.XStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -128,17 +127,15 @@ public class QueueAddJob extends ServiceableCronJob implements Configurable, Con
         job.created = new Date();
         job.tasks = new ArrayList<>(Arrays.asList(tasks));
 
-        File currentJobFile = new File(inDir, String.format("job-%s.xml", jobID));
-
-        if (this.getLogger().isInfoEnabled()) {
-            this.getLogger().info(String.format("New job: %s", currentJobFile.getAbsolutePath()));
-        }
-
         XStream xstream = getXStreamJobConfig();
 
-        FileOutputStream fos = new FileOutputStream(currentJobFile);
-        xstream.toXML(job, fos);
-        fos.close();
+        try (JobSubmission submission = new JobSubmission(inDir, job.id)) {
+            if (this.getLogger().isInfoEnabled()) {
+                this.getLogger().info(String.format("New job: %s", submission.getJobFile().getAbsolutePath()));
+            }
+            xstream.toXML(job, submission.getOutputStream());
+            submission.commit();
+        }
 
     }
 
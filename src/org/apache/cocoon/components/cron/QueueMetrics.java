@@ -0,0 +1,334 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.avalon.framework.logger.Logger;
+
+/**
+ * Counters, gauges and task latencies of one queue, kept in memory by the
+ * {@link QueueProcessorCronJob} that processes the queue.
+ * <p>
+ * The metrics of every queue are registered as an MBean named
+ * "org.apache.cocoon:type=QueueProcessor,queue={queue-path}", and can be
+ * looked up by queue path with {@link #forQueue(String)}, which is what
+ * org.apache.cocoon.generation.QueueMetricsGenerator does.
+ * <p>
+ * Latencies are in milliseconds, from the start of a task until its result
+ * is handed to the results writer. The percentiles are computed from a
+ * histogram with buckets that are at most 12.5% wide, since the processor
+ * was started or since the last {@link #reset()}. Tasks per second is the
+ * average over the last minute.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class QueueMetrics implements QueueMetricsMBean {
+
+    private static final Map<String, QueueMetrics> registry = new ConcurrentHashMap<String, QueueMetrics>();
+
+    // Values below this are counted exactly, above it in 8 buckets per power of 2.
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int RATE_WINDOW = 60; // seconds
+
+    private final String queuePath;
+    private final Callable<Integer> queueDepth;
+    private ObjectName objectName = null;
+
+    private final LongAdder jobsCompleted = new LongAdder();
+    private final LongAdder tasksCompleted = new LongAdder();
+    private final LongAdder tasksFailed = new LongAdder();
+    private final LongAdder tasksTimedOut = new LongAdder();
+    private final LongAdder tasksSpeculated = new LongAdder();
+    private final LongAdder tasksCached = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    private final AtomicLongArray latencies = new AtomicLongArray(LINEAR_BUCKETS + SUB_BUCKETS * 60);
+
+    // Completed tasks per second, for the last RATE_WINDOW seconds.
+    private final long[] rateSeconds = new long[RATE_WINDOW];
+    private final long[] rateCounts = new long[RATE_WINDOW];
+
+    /**
+     * @param queuePath The queue directory.
+     * @param queueDepth Counts the jobs that are waiting.
+     */
+    QueueMetrics(File queuePath, Callable<Integer> queueDepth) {
+        this.queuePath = queuePath.getAbsolutePath();
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Get the metrics of a queue.
+     *
+     * @param queuePath The queue directory, as configured.
+     * @return The metrics, or null if no processor for the queue is running.
+     */
+    public static QueueMetrics forQueue(String queuePath) {
+        return registry.get(new File(queuePath).getAbsolutePath());
+    }
+
+    /**
+     * @return The metrics of all queues that have a processor.
+     */
+    public static Collection<QueueMetrics> allQueues() {
+        return new ArrayList<QueueMetrics>(registry.values());
+    }
+
+    /**
+     * Make these metrics available through {@link #forQueue(String)} and JMX.
+     */
+    void register(Logger logger) {
+        registry.put(queuePath, this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.apache.cocoon:type=QueueProcessor,queue=" + ObjectName.quote(queuePath));
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException ex) {
+            logger.warn("Could not register queue metrics for " + queuePath + " in JMX", ex);
+        }
+    }
+
+    void unregister(Logger logger) {
+        registry.remove(queuePath, this);
+        if (null != objectName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ex) {
+                logger.warn("Could not unregister queue metrics for " + queuePath + " from JMX", ex);
+            }
+            objectName = null;
+        }
+    }
+
+    void jobStarted() {
+        activeJobs.incrementAndGet();
+    }
+
+    void jobFinished() {
+        activeJobs.decrementAndGet();
+        jobsCompleted.increment();
+    }
+
+    void taskStarted() {
+        activeTasks.incrementAndGet();
+    }
+
+    /**
+     * @param millis How long the task took.
+     * @param timedOut true if the task was cancelled because of its timeout.
+     */
+    void taskFinished(long millis, boolean timedOut) {
+        activeTasks.decrementAndGet();
+        tasksCompleted.increment();
+        if (timedOut) {
+            tasksTimedOut.increment();
+        }
+        latencies.incrementAndGet(bucket(Math.max(0, millis)));
+        countForRate(System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * A second attempt of a slow task was started.
+     */
+    void taskSpeculated() {
+        tasksSpeculated.increment();
+    }
+
+    /**
+     * The result of a task was taken from the result cache.
+     */
+    void taskCached() {
+        tasksCached.increment();
+    }
+
+    /**
+     * An attempt of a task ended after another attempt had already produced
+     * the result. It does not count as a completed task.
+     */
+    void taskSuperseded() {
+        activeTasks.decrementAndGet();
+    }
+
+    void taskFailed() {
+        tasksFailed.increment();
+    }
+
+    void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    @Override
+    public String getQueuePath() {
+        return queuePath;
+    }
+
+    @Override
+    public long getJobsCompleted() {
+        return jobsCompleted.sum();
+    }
+
+    @Override
+    public long getTasksCompleted() {
+        return tasksCompleted.sum();
+    }
+
+    @Override
+    public long getTasksFailed() {
+        return tasksFailed.sum();
+    }
+
+    @Override
+    public long getTasksTimedOut() {
+        return tasksTimedOut.sum();
+    }
+
+    @Override
+    public long getTasksSpeculated() {
+        return tasksSpeculated.sum();
+    }
+
+    @Override
+    public long getTasksCached() {
+        return tasksCached.sum();
+    }
+
+    @Override
+    public synchronized double getTasksPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long count = 0;
+        for (int i = 0; i < RATE_WINDOW; i++) {
+            if (now - rateSeconds[i] < RATE_WINDOW) {
+                count += rateCounts[i];
+            }
+        }
+        return (double) count / RATE_WINDOW;
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public long getLatencyP95() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        try {
+            return queueDepth.call();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return activeJobs.get();
+    }
+
+    @Override
+    public int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Set the counters and the latency histogram to zero. Gauges (queue
+     * depth, active jobs and tasks) are not affected.
+     */
+    @Override
+    public synchronized void reset() {
+        jobsCompleted.reset();
+        tasksCompleted.reset();
+        tasksFailed.reset();
+        tasksTimedOut.reset();
+        tasksSpeculated.reset();
+        tasksCached.reset();
+        bytesWritten.reset();
+        for (int i = 0; i < latencies.length(); i++) {
+            latencies.set(i, 0);
+        }
+        for (int i = 0; i < RATE_WINDOW; i++) {
+            rateCounts[i] = 0;
+        }
+    }
+
+    private synchronized void countForRate(long second) {
+        int i = (int) (second % RATE_WINDOW);
+        if (rateSeconds[i] != second) {
+            rateSeconds[i] = second;
+            rateCounts[i] = 0;
+        }
+        rateCounts[i]++;
+    }
+
+    /**
+     * The latency below which the given fraction of the tasks finished, or 0
+     * if no tasks have finished.
+     */
+    private long percentile(double fraction) {
+        long[] counts = new long[latencies.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies.get(i);
+            total += counts[i];
+        }
+        if (0 == total) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    private static int bucket(long millis) {
+        if (millis < LINEAR_BUCKETS) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis); // at least 4
+        int sub = (int) (millis >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+
+}
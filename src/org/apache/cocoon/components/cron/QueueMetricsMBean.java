@@ -0,0 +1,42 @@
+package org.apache.cocoon.components.cron;
+
+/**
+ * The JMX view of {@link QueueMetrics}.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public interface QueueMetricsMBean {
+
+    String getQueuePath();
+
+    long getJobsCompleted();
+
+    long getTasksCompleted();
+
+    long getTasksFailed();
+
+    long getTasksTimedOut();
+
+    long getTasksSpeculated();
+
+    long getTasksCached();
+
+    double getTasksPerSecond();
+
+    long getLatencyP50();
+
+    long getLatencyP95();
+
+    long getLatencyP99();
+
+    int getQueueDepth();
+
+    int getActiveJobs();
+
+    int getActiveTasks();
+
+    long getBytesWritten();
+
+    void reset();
+
+}
@@ -11,49 +11,51 @@ import com.thoughtworks.xstream.io.xml.DomDriver;
 import com.thoughtworks.xstream.security.AnyTypePermission;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.Boolean;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.DateFormat;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.xpath.*;
+import javax.xml.stream.XMLStreamException;
 import org.apache.avalon.framework.CascadingRuntimeException;
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
@@ -66,7 +68,11 @@ import org.apache.cocoon.xml.XMLUtils;
 import org.apache.cocoon.xml.dom.DOMUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.AndFileFilter;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.PrefixFileFilter;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceResolver;
@@ -74,11 +80,8 @@ import org.apache.excalibur.source.SourceParameters;
 import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -127,9 +130,10 @@ import org.xml.sax.SAXException;
  * When a Processor starts there are a few possible scenarios: 1 another job is
  * already being processed and that Processor is still alive -> quit. 2 there is
  * no job to be processed -> quit. 3 there is no other Processor running but
- * there's a job already being processed -> move job to "error"-directory, quit.
- * 4 there is a job to be processed and no Processor active -> start processing
- * a new job.
+ * there's a job already being processed -> resume the job if it has a
+ * task-journal.txt and was resumed fewer than max-resumes times, otherwise
+ * move job to "error"-directory, quit. 4 there is
+ * a job to be processed and no Processor active -> start processing a new job.
  * <p>
  * To submit a job, place a XML file called "job-{id}.xml" in the
  * "in"-directory, containing the following structure:
@@ -137,9 +141,14 @@ import org.xml.sax.SAXException;
  * <pre>
  * {@code
  * <job id="..." name="test-job" description="..."
- *   created="20140613T11:45:00" max-concurrent="3" task-timeout="timeout in seconds"?>
+ *   created="20140613T11:45:00" max-concurrent="3|auto" task-timeout="timeout in seconds"?
+ *   priority="high|normal|low"? speculative="true|false"? cache="true|false"?>
+ *    <host-limits max-concurrent="n"? rate="n"? burst="n"?>
+ *        <host target="http://api.example.org" max-concurrent="n"? rate="n"? burst="n"?/>
+ *        ...
+ *    </host-limits>?
  *    <tasks>
- *        <task id="task-1">
+ *        <task id="task-1" depends-on="ids of other tasks"?>
  *           <uri>http://localhost:8888/koop/front/queue-test?id=1</uri>
  *           <content>{your XML document goes here}</content>?
  *        </task>
@@ -154,7 +163,57 @@ import org.xml.sax.SAXException;
  * number of concurrent threads will never be higher than the number of
  * available cores. When it is negative the number of threads used is the 
  * number of available cores plus the max-concurrent attribute (resulting in a
- * smaller number); but it is always at least one.
+ * smaller number); but it is always at least one. With max-concurrent="auto"
+ * the number of concurrent tasks adapts to the backend: it goes up while task
+ * latency stays flat, and down when latency or the number of failing tasks
+ * rises, see {@link AdaptiveLimit}. The bounds are set on the component with
+ * {@code <adaptive-concurrency min="1" max="64"/>}.
+ * <p>
+ * A task that takes longer than task-timeout seconds is cancelled: its thread
+ * is interrupted, its Source is released, and its result in task-results.xml
+ * is a {@code <task-error type="timeout">} element.
+ * <p>
+ * Only for jobs whose tasks can safely be run twice: with speculative="true",
+ * when all tasks of the job have been started and the job has threads to
+ * spare, a task that runs longer than factor times the median task time is
+ * started a second time. The result of whichever run finishes first is kept
+ * and the other run is cancelled. This keeps a few tasks that hit a slow
+ * backend from holding up the job. The factor and the number of tasks that
+ * must have finished before this happens are set on the component with
+ * {@code <speculation factor="3" min-tasks="10"/>}.
+ * <p>
+ * Tasks run in random order, unless they have a depends-on attribute: a list
+ * of the ids of the tasks it depends on, separated by spaces. Such a task
+ * starts as soon as all those tasks have finished, so a job can have several
+ * stages, and independent tasks still run in parallel. When one of the tasks
+ * it depends on fails or times out, the task does not run, and its result is
+ * a {@code <task-error type="dependency">} element; the same happens to tasks
+ * that depend on tasks that do not exist, or on themselves. The waiting tasks
+ * are kept in memory, see {@link TaskGraph}, so list tasks after the tasks
+ * they depend on.
+ * <p>
+ * The tasks of a job often use a few external hosts next to local cocoon:
+ * pipelines. Host-limits put limits on the tasks per target, the scheme and
+ * host of the task URI, such as "http://api.example.org" or "cocoon:", see
+ * {@link HostLimits}: max-concurrent is the number of tasks of the target that
+ * may run at the same time, rate the number of tasks that may start per
+ * second, and burst how many of those may start at once. The attributes of
+ * the host-limits element apply to the targets without a host element. The
+ * limits of the component apply to all jobs together, the limits of a job to
+ * its own tasks, which must keep to both. A task whose target is at its limit
+ * waits, while the tasks after it that use other targets go ahead, so local
+ * pipelines run at full speed while a remote host is throttled. Tasks of a
+ * target with limits are not started twice by speculative="true".
+ * <p>
+ * Only for jobs whose pipelines always produce the same result for the same
+ * uri and content: with cache="true", the result of a task is taken from the
+ * result cache of the component, if a task with the same uri and content ran
+ * less than ttl seconds ago, and the task element in task-results.xml gets
+ * cached="true". Otherwise the task runs, and its result is added to the
+ * cache, unless it is an error. The cache is kept on disk, see
+ * {@link ResultCache}; when it is larger than max-size, the least recently
+ * used results are removed. Without a result-cache element, cache="true" has
+ * no effect.
  * <p>
  * To add this cronjob to Cocoon add a trigger to the Quartzcomponent
  * configuration and declare this component in the same sitemap.
@@ -182,14 +241,110 @@ import org.xml.sax.SAXException;
  *   logger="cron.publish"
  *   role="org.apache.cocoon.components.cron.CronJob/queueprocessor">
  *    <queue-path>path-to-queue-directory-on-disk</queue-path>
+ *    <stream-results>true</stream-results>?
+ *    <watch>true</watch>?
+ *    <max-resumes>times an interrupted job is resumed, default 3</max-resumes>?
+ *    <status-interval>seconds between updates of processor-status.xml, default 5</status-interval>?
+ *    <adaptive-concurrency min="1" max="64"/>?
+ *    <speculation factor="3" min-tasks="10"/>?
+ *    <archive compression="default|stored|0-9"/>?
+ *    <in-memory>true</in-memory>?
+ *    <host-limits max-concurrent="n"? rate="n"? burst="n"?>
+ *        <host target="http://api.example.org" max-concurrent="n"? rate="n"? burst="n"?/>
+ *        ...
+ *    </host-limits>?
+ *    <result-cache dir="directory, default {queue-path}/result-cache"? ttl="seconds, default 86400"?
+ *        max-size="megabytes, default 1024"?/>?
+ *    <node-id>unique-name-of-this-node</node-id>?
+ *    <lease-interval>seconds, default 30</lease-interval>?
+ *    <lease-timeout>seconds, default 1200</lease-timeout>?
+ *    <job-slots>number of jobs processed at the same time, default 1</job-slots>?
+ *    <worker-threads>threads divided over running jobs</worker-threads>?
+ *    <worker-pool threads="size of the pool, default unbounded" virtual="true|false"/>?
+ *    <priority-weights high="4" normal="2" low="1"/>?
  * </component>
  * }
  * </pre>
  * <p>
+ * While a job is processed, its processor-status.xml file is touched every
+ * lease-interval seconds. A job whose status file is older than lease-timeout
+ * seconds is considered stale.
+ * <p>
+ * Several Cocoon nodes can process jobs from one queue directory on a shared
+ * file system, when each node has its own node-id. A node claims a job by
+ * atomically moving it into "in-progress/{node-id}", and keeps its
+ * processor-status.xml in that directory. The jobs of a node whose lease has
+ * expired are moved to "error" by one of the other nodes. Do not mix nodes with
+ * and without a node-id on the same queue. The stop-job.xml file must be put in
+ * the work directory of the node that processes the job.
+ * <p>
+ * With job-slots larger than 1, several jobs are processed at the same time,
+ * each in its own "slot-{n}" work directory. Jobs in "in/high" are started
+ * before jobs in "in", which are started before jobs in "in/low". When
+ * worker-threads is set, the running jobs share that many threads, in
+ * proportion to the weight of their priority. A priority="high|normal|low"
+ * attribute on the job element overrides the priority of its lane. This way
+ * small, urgent jobs get through while a big batch job is running.
+ * <p>
+ * The tasks of all jobs run in one worker pool, which lives as long as this
+ * component. Without a threads attribute, the pool grows as needed. A job never
+ * runs more tasks at the same time than its max-concurrent allows. With
+ * virtual="true" each task runs in a virtual thread, which needs Java 21; on
+ * older versions a warning is logged and platform threads are used.
+ * <p>
+ * While a job is processed, the sequence numbers of the tasks whose results are
+ * in task-results.xml are recorded in task-journal.txt, which is forced to disk
+ * in batches. When the JVM dies in the middle of a job, the next Processor that
+ * finds the job resumes it: tasks in the journal are skipped and the results
+ * of the other tasks are appended to task-results.xml. The job keeps the
+ * priority of its lane, which is kept in resume-state.txt with the number of
+ * times the job was resumed. A job that is interrupted again every time it is
+ * resumed, because it kills the JVM, is moved to "error" after max-resumes
+ * attempts (3 by default). Jobs of other nodes whose lease has expired are
+ * still moved to "error".
+ * <p>
+ * With watch set to true, the "in" directories are watched for new jobs, and a
+ * job is started as soon as it is submitted instead of at the next trigger.
+ * The job files are then kept in an index in memory, so the directories do
+ * not have to be listed to find the oldest job. The trigger is still needed
+ * to start watching, and it makes sure that no job is missed.
+ * <p>
+ * The processor keeps metrics of its queue in memory: tasks per second, task
+ * latency percentiles, queue depth, active jobs and tasks, and bytes written.
+ * See {@link QueueMetrics}; they are available through JMX and the
+ * QueueMetricsGenerator.
+ * <p>
+ * The zip file of a job is written while the job runs: task results are
+ * compressed as soon as they are written, so little is left to do when the
+ * last task has finished. The zip file is moved into "out" when it is
+ * complete. The compression level is set with the compression attribute of
+ * the archive element, compression="stored" adds files without compressing
+ * them, which is best for output that is already compressed. Next to the zip
+ * file, a "{job-name}.index" file is written, which the
+ * QueueTaskResultGenerator uses to read the result of a single task from the
+ * zip file.
+ * <p>
+ * With in-memory set to true, jobs that are submitted in this JVM (by
+ * QueueAddJob or the QueueJobTransformer) do not go to the "in" directory,
+ * but to a queue in memory, see {@link MemoryQueue}. They are recorded in the
+ * write-ahead log "queue.wal" in the queue directory, and queued again when
+ * the processor starts after a crash. Such a job is started as soon as a job
+ * slot is free, taking turns with the jobs in the "in" directories, and does
+ * not use a work directory: there is no processor-status.xml, no journal and no
+ * stop-job.xml, its results go straight into its zip file in "out", which also
+ * contains the job. This is meant for many small jobs, whose processing time
+ * would otherwise be dominated by moving, cleaning and zipping files. Job files
+ * that are put in the "in" directories are still processed as before, and a
+ * job that was interrupted in a work directory is resumed before any other.
+ * <p>
+ * When stream-results is true, the output of a task is serialized into
+ * task-results.xml as it is produced, instead of being parsed into a DOM
+ * first. This saves a lot of memory for tasks that produce large documents.
+ * <p>
  * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
  *
  */
-public class QueueProcessorCronJob extends ServiceableCronJob implements Configurable, ConfigurableCronJob {
+public class QueueProcessorCronJob extends ServiceableCronJob implements Configurable, ConfigurableCronJob, Disposable {
 
     private static final String PARAMETER_QUEUE_PATH = "queue-path";
     private static final String PROCESSOR_STATUS_FILE = "processor-status.xml";
@@ -200,13 +355,129 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
     private static final String inDirName = "in";
     private static final String processingDirName = "in-progress";
     private static final String outDirName = "out";
+    private static final String resultCacheDirName = "result-cache";
     private static final String errorDirName = "error";
     private static final String contentParameter = "document";
 
     private static final String STOP_JOB_FILENAME = "stop-job.xml";
 
+    private static final String TASK_JOURNAL_FILE = "task-journal.txt";
+    // The lane of the job in a work directory and the number of times it was resumed.
+    private static final String RESUME_STATE_FILE = "resume-state.txt";
+    // The zip file of the job while it is being written.
+    private static final String ARCHIVE_PART_FILE = "archive.zip.part";
+    private static final String INDEX_PART_FILE = "archive.index.part";
+    private static final String TASK_RESULTS_FILE = "task-results.xml";
+
+    private static final String PARAMETER_STREAM_RESULTS = "stream-results";
+    private static final String PARAMETER_NODE_ID = "node-id";
+    private static final String PARAMETER_LEASE_INTERVAL = "lease-interval";
+    private static final String PARAMETER_LEASE_TIMEOUT = "lease-timeout";
+
+    private static final String PARAMETER_JOB_SLOTS = "job-slots";
+    private static final String PARAMETER_WORKER_THREADS = "worker-threads";
+    private static final String PARAMETER_PRIORITY_WEIGHTS = "priority-weights";
+    private static final String PARAMETER_WORKER_POOL = "worker-pool";
+    private static final String PARAMETER_WATCH = "watch";
+    private static final String PARAMETER_STATUS_INTERVAL = "status-interval";
+    private static final String PARAMETER_ADAPTIVE_CONCURRENCY = "adaptive-concurrency";
+    private static final String PARAMETER_SPECULATION = "speculation";
+    private static final String PARAMETER_ARCHIVE = "archive";
+    private static final String PARAMETER_IN_MEMORY = "in-memory";
+    private static final String PARAMETER_HOST_LIMITS = "host-limits";
+    private static final String PARAMETER_RESULT_CACHE = "result-cache";
+    private static final String PARAMETER_MAX_RESUMES = "max-resumes";
+
+    private static final String RECOVERING_PREFIX = ".recovering-";
+    private static final String SLOT_PREFIX = "slot-";
+
+    // How often to look for new jobs while a job slot is free (ms).
+    private static final long SLOT_POLL_INTERVAL = 2000;
+    // Maximum time between looks for slow tasks of a speculative job (ms).
+    private static final long SPECULATION_POLL_INTERVAL = 1000;
+    // The number of task latencies the median of a speculative job is taken from.
+    private static final int SPECULATION_LATENCIES = 256;
+    // The number of tasks of a job that may wait for their host, before the job stops reading tasks.
+    private static final int MAX_DEFERRED_TASKS = 1000;
+    // The number of tasks of a job that may wait for other tasks, before the job stops reading tasks while tasks are running.
+    private static final int MAX_HELD_TASKS = 10000;
+    // The number of the oldest jobs in a lane that a node tries to claim, before it waits for the next look.
+    private static final int CLAIM_CANDIDATES = 16;
+
+    // Put in queueEvents when a new job has been submitted.
+    private static final File NEW_JOB = new File(inDirName);
+
     private File queuePath;
 
+    // Serialize task output directly, without building a DOM.
+    private boolean streamResults = false;
+
+    // Name of the work directory in "in-progress" when several nodes share the queue.
+    private String nodeId = null;
+
+    private long leaseInterval;
+    private long leaseTimeout;
+
+    // The number of times an interrupted job is resumed before it is moved to "error".
+    private int maxResumes;
+
+    // Renews leases and enforces task deadlines.
+    private ScheduledExecutorService scheduler = null;
+
+    // Runs the tasks of all jobs, created when the first job starts.
+    private ExecutorService workerPool = null;
+
+    // Size of the worker pool, 0 means unbounded.
+    private int workerPoolThreads = 0;
+
+    private boolean virtualWorkerThreads = false;
+
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+
+    // Work directories whose job has finished, and NEW_JOB when a job is submitted.
+    private final BlockingQueue<File> queueEvents = new LinkedBlockingQueue<File>();
+
+    // Start processing as soon as a job is submitted, instead of waiting for the trigger.
+    private boolean watch = false;
+    private JobDirectoryWatcher watcher = null;
+    private ExecutorService watchExecutor = null;
+    private final AtomicBoolean watchTriggered = new AtomicBoolean(false);
+    private Runnable watchProcess = null;
+
+    // The number of jobs that are processed at the same time.
+    private int jobSlots = 1;
+
+    // Divides the worker threads over the running jobs.
+    private FairShare fairShare;
+
+    private final Map<JobPriority, Integer> priorityWeights = new EnumMap<JobPriority, Integer>(JobPriority.class);
+
+    // Minimum time between rewrites of processor-status.xml while a job runs (ms).
+    private long statusInterval;
+
+    private QueueMetrics metrics;
+
+    // Bounds of the number of threads of a job with max-concurrent="auto".
+    private int adaptiveMin;
+    private int adaptiveMax;
+
+    // A task of a speculative job is run again when it takes more than this times the median.
+    private double speculationFactor;
+    // The number of tasks that must have finished before any task is run again.
+    private int speculationMinTasks;
+
+    // Compression level of the zip files of finished jobs, see JobArchive.
+    private int archiveLevel;
+
+    // The jobs that are submitted in this JVM, when in-memory is true.
+    private MemoryQueue memoryQueue = null;
+    // The limits per target host, shared by all jobs.
+    private HostLimits hostLimits;
+    // The results of tasks of jobs with cache="true", null if there is no result-cache.
+    private ResultCache resultCache = null;
+
+    private final SAXTransformerFactory saxTransformerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
+
     /**
      * An enum denoting the status of a Processor this class).
      */
@@ -221,21 +492,65 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
         ACTIVE, PAUSED
     }
 
+    /**
+     * The priority of a job. Jobs in a higher priority lane are started first,
+     * and get a larger share of the worker threads.
+     */
+    public enum JobPriority {
+        HIGH("high", 4), NORMAL("", 2), LOW("low", 1);
+
+        private final String laneName;
+        private final int defaultWeight;
+
+        JobPriority(String laneName, int defaultWeight) {
+            this.laneName = laneName;
+            this.defaultWeight = defaultWeight;
+        }
+
+        /**
+         * The directory where jobs with this priority are submitted:
+         * "in/high", "in" or "in/low".
+         */
+        public File laneDirectory(File inDir) {
+            return laneName.isEmpty() ? inDir : new File(inDir, laneName);
+        }
+
+        /**
+         * The priority named by a priority attribute, or null.
+         */
+        public static JobPriority fromAttribute(String value) {
+            for (JobPriority priority : values()) {
+                if (priority.name().equalsIgnoreCase(value)) {
+                    return priority;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Copy job file to outDir, also, zip contents of processingDir into
      * "{currentJob-name}.zip" into outDir.
      * The zip contains a directory {currentJob-name}, all other files are in
      * that directory.
+     * <p>
+     * The task results are normally already in the archive, which was written
+     * while the job ran. Only the other files are added here. If the archive
+     * is missing or broken, it is created from scratch.
+     * <p>
+     * The {@link TaskResultsIndex} of the archive is put next to it, as
+     * "{currentJob-name}.index". A job without an index is still complete,
+     * its task results can only be found by reading the whole archive.
      *
      * @param processingDir
      * @param outDir
      * @param currentJob
+     * @param archive The archive that was written while the job ran, or null.
      */
-    private void finishUpJob(File processingDir, File outDir, File currentJob) throws IOException {
+    private void finishUpJob(File processingDir, File outDir, File currentJob, JobArchive archive) throws IOException {
         final String basename = FilenameUtils.getBaseName(currentJob.getName());
         final String zipFileName = String.format("%s.zip", basename);
         File zipFile = new File(outDir, zipFileName);
-        final String zipFolder = basename + "/";
 
         if (this.getLogger().isDebugEnabled()) {
             this.getLogger().debug("Finishing up job, creating Zip file.");
@@ -245,33 +560,25 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
 
         try {
 
-            // create byte buffer
-            byte[] buffer = new byte[1024];
-
-            FileOutputStream fos = new FileOutputStream(zipFile);
-
-            ZipOutputStream zos = new ZipOutputStream(fos);
-
-            // add a directory to the new ZIP first
-            zos.putNextEntry(new ZipEntry(zipFolder));
-
-            File[] files = processingDir.listFiles();
-
-            for (File file : files) {
-                FileInputStream fis = new FileInputStream(file);
-                // begin writing a new ZIP entry, positions the stream to the start of the entry data
-                zos.putNextEntry(new ZipEntry(zipFolder + file.getName()));
-                int length;
-                while ((length = fis.read(buffer)) > 0) {
-                    zos.write(buffer, 0, length);
+            if (null == archive || archive.isBroken()) {
+                archive = new JobArchive(new File(processingDir, ARCHIVE_PART_FILE), basename, archiveLevel);
+            }
+            try {
+                for (File file : processingDir.listFiles()) {
+                    String name = file.getName();
+                    if (TASK_JOURNAL_FILE.equals(name) || RESUME_STATE_FILE.equals(name) || ARCHIVE_PART_FILE.equals(name) || INDEX_PART_FILE.equals(name) || archive.contains(name)) {
+                        continue;
+                    }
+                    archive.addFile(file);
                 }
-                zos.closeEntry();
-                // close the InputStream
-                fis.close();
+                archive.close();
+            } catch (IOException ex) {
+                archive.abandon();
+                throw ex;
             }
-
-            // close the ZipOutputStream
-            zos.close();
+            // Only a complete archive appears in the out directory.
+            moveFileTo(archive.getFile(), zipFile);
+            writeTaskResultsIndex(processingDir, outDir, basename, archive);
 
         } catch (IOException ioe) {
             this.getLogger().error("Error creating zip file" + ioe);
@@ -282,36 +589,185 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
         }
     }
 
+    /**
+     * Write the index of the task results in the archive of a job to outDir.
+     */
+    private void writeTaskResultsIndex(File processingDir, File outDir, String basename, JobArchive archive) {
+        JobArchive.AccessPoints points = archive.getAccessPoints(TASK_RESULTS_FILE);
+        if (null == points) {
+            return;
+        }
+        File indexPart = new File(processingDir, INDEX_PART_FILE);
+        try {
+            int tasks = TaskResultsIndex.write(indexPart, points, new File(processingDir, TASK_RESULTS_FILE),
+                    new File(processingDir, TASK_JOURNAL_FILE));
+            moveFileTo(indexPart, new File(outDir, String.format("%s.%s", basename, TaskResultsIndex.INDEX_EXTENSION)));
+            if (this.getLogger().isDebugEnabled()) {
+                this.getLogger().debug(String.format("Indexed %d task results of %s.", tasks, basename));
+            }
+        } catch (IOException ex) {
+            this.getLogger().warn("Could not write the task results index of " + basename, ex);
+            indexPart.delete();
+        }
+    }
+
     /**
      * The object that runs a task.
+     * <p>
+     * When the job has a task-timeout, the task gets a deadline when it
+     * starts. If the task has not finished by then, a task-error with
+     * type="timeout" is written as its result, its Source is released and its
+     * thread is interrupted. Whatever the task produces after that is thrown
+     * away.
+     * <p>
+     * A speculative job can have a second runner for a slow task. Both
+     * runners share the claim on the result: the first one to finish writes
+     * it, the other one is superseded and its output is thrown away.
      */
     private class CocoonTaskRunner extends CocoonRunnable {
 
         private final Task task;
         private final SourceResolver resolver;
         private final org.apache.avalon.framework.logger.Logger logger;
-        private final OutputStream os;
+        private final TaskResultsWriter results;
         private final int sequenceNumber;
         private final int numThreads;
+        private final BlockingQueue<CocoonTaskRunner> finishedTasks;
+        private final long timeout;
+
+        // Set when this runner is done: by the task itself or by its deadline.
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        // Set by the runner that writes the result, shared with a speculative runner.
+        private final AtomicBoolean resultClaimed;
+        // The other runner of the same task, used by the job loop only.
+        private CocoonTaskRunner sibling = null;
+        // Set when the other runner wrote the result.
+        private volatile boolean superseded = false;
+        private Source source = null;
+        private boolean sourceClosed = false;
+        private volatile Future<CocoonTaskRunner> future;
+        private volatile boolean timedOut = false;
+        // Set when the result is a task-error.
+        private volatile boolean failed = false;
+        // The cache the result is taken from and added to, or null.
+        private ResultCache cache = null;
+        // Set when the result came from the cache.
+        private boolean cached = false;
+        private String startedAt;
+        // Zero until the task has started.
+        private volatile long startNanos = 0;
+        // How long the task took (ms), set when it has finished.
+        private volatile long latency;
 
         public CocoonTaskRunner(Task t, SourceResolver resolver, org.apache.avalon.framework.logger.Logger logger,
-                                OutputStream os, int sequenceNumber, int numThreads) {
+                                TaskResultsWriter results, int sequenceNumber, int numThreads,
+                                BlockingQueue<CocoonTaskRunner> finishedTasks, long timeout) {
             this.task = t;
             this.resolver = resolver;
             this.logger = logger;
-            this.os = os;
+            this.results = results;
             this.sequenceNumber = sequenceNumber;
             this.numThreads = numThreads;
+            this.finishedTasks = finishedTasks;
+            this.timeout = timeout;
+            this.resultClaimed = new AtomicBoolean(false);
+        }
+
+        /**
+         * Create a second runner for the task of another runner.
+         */
+        public CocoonTaskRunner(CocoonTaskRunner primary) {
+            this.task = primary.task;
+            this.resolver = primary.resolver;
+            this.logger = primary.logger;
+            this.results = primary.results;
+            this.sequenceNumber = primary.sequenceNumber;
+            this.numThreads = primary.numThreads;
+            this.finishedTasks = primary.finishedTasks;
+            this.timeout = primary.timeout;
+            this.resultClaimed = primary.resultClaimed;
+            this.cache = primary.cache;
+            this.sibling = primary;
+            primary.sibling = this;
         }
 
         @Override
         public void doRun() {
+            startedAt = "" + new org.joda.time.DateTime();
+            startNanos = System.nanoTime();
+            metrics.taskStarted();
+            ScheduledFuture<?> deadline = null;
+            if (timeout > 0) {
+                deadline = scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeOut();
+                    }
+                }, timeout, TimeUnit.SECONDS);
+            }
+            String[] result = null;
+            try {
+                result = runTask();
+            } catch (RuntimeException ex) {
+                logger.error("Task " + task.id + " failed.", ex);
+            } finally {
+                if (null != deadline) {
+                    deadline.cancel(false);
+                }
+                closeSource();
+                if (finished.compareAndSet(false, true)) {
+                    latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                    try {
+                        if (resultClaimed.compareAndSet(false, true)) {
+                            metrics.taskFinished(latency, false);
+                            if (failed) {
+                                metrics.taskFailed();
+                            }
+                            if (null != result) {
+                                results.write(sequenceNumber, failed, result);
+                            }
+                        } else {
+                            superseded = true;
+                            metrics.taskSuperseded();
+                        }
+                    } finally {
+                        finishedTasks.add(this);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Run the pipeline of the task.
+         *
+         * @return The parts of the result, to be written to task-results.xml.
+         */
+        private String[] runTask() {
             try {
 
                 long threadId = Thread.currentThread().getId() % numThreads + 1;
 
                 logger.info("Thread " + threadId + " of " + numThreads + " starting.");
 
+                String key = null;
+                if (null != cache) {
+                    key = ResultCache.key(task);
+                    String cachedResult = cache.get(key);
+                    if (null != cachedResult) {
+                        cached = true;
+                        metrics.taskCached();
+                        return new String[] {startTag(), cachedResult, "</task>"};
+                    }
+                }
+
+                if (streamResults) {
+                    String taskResult = streamPipeline(this);
+                    if (null != key && !failed) {
+                        cache.put(key, taskResult);
+                    }
+                    return new String[] {startTag(), taskResult, "</task>"};
+                }
+
                 Document doc = DOMUtil.createDocument();
 
                 Element taskNode = doc.createElement("task");
@@ -322,37 +778,140 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
 
                 taskNode.setAttribute("uri", task.uri);
 
-                taskNode.setAttribute("startedAt", "" + new org.joda.time.DateTime());
+                taskNode.setAttribute("startedAt", startedAt);
                 
-                Element taskResult = processPipeline(task, resolver, logger, doc);
+                Element taskResult = processPipeline(this, doc);
                 
                 taskNode.setAttribute("finishedAt", "" + new org.joda.time.DateTime());
 
                 taskNode.appendChild(taskResult);
 
                 Properties properties = XMLUtils.createPropertiesForXML(true);                
-                writeOutputStream(os, XMLUtils.serializeNode(taskNode, properties));
+                if (null != key && !failed) {
+                    cache.put(key, XMLUtils.serializeNode(taskResult, properties));
+                }
+                return new String[] {XMLUtils.serializeNode(taskNode, properties)};
                 
             } catch (ProcessingException ex) {
+                failed = true;
                 Logger.getLogger(QueueProcessorCronJob.class.getName()).log(Level.SEVERE, null, ex);
                 String result = String.format("\n%s\n%s\n%s\n", "<error>", ex.getLocalizedMessage(), "</error>");
-                writeOutputStream(os, result);
+                return new String[] {result};
+            }
+        }
+
+        /**
+         * Called by the scheduler when the deadline of the task has passed.
+         * The scheduler also renews the leases of the jobs, so it only
+         * claims the result and interrupts the task. The error result, which
+         * may have to wait for the results writer, is written by a thread of
+         * the worker pool. The Source is released by the task thread when it
+         * stops.
+         */
+        private void timeOut() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            final boolean claimed = resultClaimed.compareAndSet(false, true);
+            if (claimed) {
+                timedOut = true;
+                failed = true;
+            } else {
+                superseded = true;
+            }
+            synchronized (this) {
+                // A Source that is resolved from now on is released right away.
+                sourceClosed = true;
+            }
+            Future<CocoonTaskRunner> f = future;
+            if (null != f) {
+                f.cancel(true);
+            }
+            workerPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    finishTimeOut(claimed);
+                }
+            });
+        }
+
+        /**
+         * Record the outcome of a task that timed out.
+         *
+         * @param claimed true if the timeout claimed the result of the task.
+         */
+        private void finishTimeOut(boolean claimed) {
+            logger.warn(String.format("Task %s (%s) did not finish within %d seconds, cancelling it.", task.id, task.uri, timeout));
+            try {
+                if (claimed) {
+                    metrics.taskFinished(latency, true);
+                    results.write(sequenceNumber, true, startTag(), "<task-error type=\"timeout\">",
+                            String.format("Task did not finish within %d seconds.", timeout), "</task-error></task>");
+                } else {
+                    metrics.taskSuperseded();
+                }
+            } finally {
+                // Do not wait for the task thread, it may ignore the interrupt.
+                finishedTasks.add(this);
+            }
+        }
+
+        private String startTag() {
+            return String.format("<task id=\"%s\" seq=\"%d\" uri=\"%s\" startedAt=\"%s\" finishedAt=\"%s\"%s>",
+                    StringEscapeUtils.escapeXml(task.id), sequenceNumber, StringEscapeUtils.escapeXml(task.uri),
+                    startedAt, new org.joda.time.DateTime(), cached ? " cached=\"true\"" : "");
+        }
+
+        /**
+         * Resolve the Source of the task, and remember it so it can be
+         * released when the task stops. After the task has timed out, the
+         * Source is released right away.
+         */
+        private Source openSource() throws Exception {
+            Source src = resolveTask(task, resolver, logger);
+            synchronized (this) {
+                if (!sourceClosed) {
+                    source = src;
+                    return src;
+                }
+            }
+            // Timed out while resolving.
+            resolver.release(src);
+            throw new InterruptedException("Task timed out.");
+        }
+
+        /**
+         * Release the Source of the task, if that has not been done already.
+         */
+        private void closeSource() {
+            Source src;
+            synchronized (this) {
+                sourceClosed = true;
+                src = source;
+                source = null;
+            }
+            if (null != src) {
+                resolver.release(src);
             }
         }
 
     }
 
     /**
-     * Process a job: add all tasks to ExecutorService, invokeAll tasks and wait
-     * until all tasks have finished. While waiting, update
-     * processor-status.xml.
+     * Process a job: read tasks from the job file and submit them to the
+     * worker pool, and wait until all tasks have finished. Tasks are read
+     * lazily, and a task is only submitted when one of the job's permits is
+     * free, so the job never has more than maxThreads tasks running.
+     * While waiting, update processor-status.xml.
      *
      * @param inDir Where all output files are stored.
      * @param currentJob The current job file.
+     * @param lane The lane the job came from, which determines its share of
+     * the worker threads if it does not have a priority attribute.
+     * @param archive The archive the task results are added to, or null.
      */
-    private void processCurrentJobConcurrently(File inDir, File currentJob) throws ServiceException, FileNotFoundException, IOException, NoSuchMethodException, XPathExpressionException, ParseException, ParserConfigurationException, SAXException {
-        ExecutorService threadPool;
-
+    private void processCurrentJobConcurrently(File inDir, File currentJob, JobPriority lane, JobArchive archive) throws ServiceException, FileNotFoundException, IOException, ParseException, XMLStreamException {
         this.getLogger().debug(String.format("processCurrentJobConcurrently file \"%s\"", currentJob.getAbsolutePath()));
 
         if (this.getLogger().isInfoEnabled()) {
@@ -362,149 +921,425 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
         if (this.getLogger().isDebugEnabled()) {
             this.getLogger().debug("Reading job file.");
         }
-        
-        JobConfig jobConfig = readJobConfig(currentJob);
-        
-        if (this.getLogger().isDebugEnabled()) {
-            this.getLogger().debug("Job file read.");
-        }
 
-        int totalTasks = jobConfig.tasks.size();
-        int completedTasks = 0;
-        DateTime jobStartedAt = new DateTime();
+        Set<String> dependencies = new HashSet<String>();
+        int totalTasks = JobFileReader.countTasks(currentJob, dependencies);
+        processJob(new JobFileReader(currentJob), totalTasks, dependencies, inDir, lane, archive);
+    }
+
+    /**
+     * Process the tasks of a job, from a job file or from the in-memory
+     * queue. See {@link #processCurrentJobConcurrently}.
+     *
+     * @param jobReader The reader of the job, which is closed when the job is
+     * done.
+     * @param totalTasks The number of tasks of the job.
+     * @param dependencies The ids of the tasks that other tasks depend on.
+     * @param inDir The work directory, where the results, the journal, the
+     * status and the stop file of the job are. For a job of the in-memory
+     * queue this is null, its results are only written to the archive.
+     * @param lane The lane the job came from.
+     * @param archive The archive the task results are added to, which may only
+     * be null if there is a work directory.
+     */
+    private void processJob(JobFileReader jobReader, int totalTasks, Set<String> dependencies, File inDir, JobPriority lane, JobArchive archive) throws ServiceException, IOException, XMLStreamException {
+        File statusFile = null == inDir ? null : processorStatusFile(inDir);
+        try {
+            JobConfig jobConfig = jobReader.getJobConfig();
 
-        writeProcessorStatus(jobConfig.name, null, jobStartedAt, totalTasks, completedTasks);
+            int completedTasks = 0;
+            DateTime jobStartedAt = new DateTime();
 
-        // This is good default for I/O intensive tasks, though on some systems it can be much higher.
-        // For computer intensive tasks, use Runtime.getRuntime().availableProcessors() + 1.
-        int availableProcessors = Runtime.getRuntime().availableProcessors() * 2;
-        int maxConcurrent = jobConfig.maxConcurrent;
+            if (this.getLogger().isDebugEnabled()) {
+                this.getLogger().debug("Job file read, " + totalTasks + " tasks.");
+            }
 
-        this.getLogger().info(String.format("availableProcessors=%s,  maxConcurrent=%s", availableProcessors, maxConcurrent));
-        int maxThreads = maxConcurrent; // default nr of threads
-        if (maxConcurrent <= 0) {
-            // If negative, add to availableProcessors, but of course,
-            // use at least one thread.
-            maxThreads = availableProcessors + maxConcurrent;
-            if (maxThreads < 1) {
-                maxThreads = 1;
+            if (null != statusFile) {
+                writeProcessorStatus(statusFile, jobConfig.name, null, jobStartedAt, totalTasks, completedTasks);
             }
-        } else {
-            // Use specified maximum, but only if it is no more than what's
-            // available.
-//            if (maxConcurrent > availableProcessors) {
-//                maxThreads = availableProcessors;
-//            }
-        }
-        if (1 == maxThreads) {
-            threadPool = Executors.newSingleThreadExecutor();
-        } else {
-            threadPool = Executors.newFixedThreadPool(maxThreads);
-        }
-        if (this.getLogger().isInfoEnabled()) {
-            this.getLogger().info("Using " + maxThreads + " threads to execute " + totalTasks + " tasks.");
-        }
 
-        this.getLogger().info(String.format("Using %s threads to execute %s tasks.", maxThreads, totalTasks));
+            // This is good default for I/O intensive tasks, though on some systems it can be much higher.
+            // For computer intensive tasks, use Runtime.getRuntime().availableProcessors() + 1.
+            int availableProcessors = Runtime.getRuntime().availableProcessors() * 2;
+            int maxConcurrent = jobConfig.adaptiveConcurrency ? adaptiveMax : jobConfig.maxConcurrent;
+
+            this.getLogger().info(String.format("availableProcessors=%s,  maxConcurrent=%s", availableProcessors, jobConfig.adaptiveConcurrency ? "auto" : maxConcurrent));
+            int maxThreads = maxConcurrent; // default nr of threads
+            AdaptiveLimit adaptiveLimit = null;
+            if (jobConfig.adaptiveConcurrency) {
+                // Start where a fixed max-concurrent="0" would be, and let the latency decide.
+                adaptiveLimit = new AdaptiveLimit(availableProcessors, adaptiveMin, adaptiveMax);
+            } else if (maxConcurrent <= 0) {
+                // If negative, add to availableProcessors, but of course,
+                // use at least one thread.
+                maxThreads = availableProcessors + maxConcurrent;
+                if (maxThreads < 1) {
+                    maxThreads = 1;
+                }
+            } else {
+                // Use specified maximum, but only if it is no more than what's
+                // available.
+//                if (maxConcurrent > availableProcessors) {
+//                    maxThreads = availableProcessors;
+//                }
+            }
+            Semaphore permits = new Semaphore(maxThreads);
+            // Keep the threads busy, but do not read more of the job file than necessary.
+            int maxInFlight = 2 * maxThreads;
 
-        CompletionService<CocoonTaskRunner> jobExecutor = new ExecutorCompletionService<CocoonTaskRunner>(threadPool);
-        SourceResolver resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
+            this.getLogger().info(String.format("Using %s threads to execute %s tasks.", maxThreads, totalTasks));
 
-        File outputFile = new File(inDir, "task-results.xml");
-        OutputStream os = new FileOutputStream(outputFile);
+            BlockingQueue<CocoonTaskRunner> finishedTasks = new LinkedBlockingQueue<CocoonTaskRunner>();
+            Set<CocoonTaskRunner> running = new HashSet<CocoonTaskRunner>();
+            SourceResolver resolver = (SourceResolver) this.manager.lookup(SourceResolver.ROLE);
 
-        writeOutputStream(os, String.format("<tasks job-id=\"%s\" job-name=\"%s\">", jobConfig.id, jobConfig.name));
+            TaskResultsWriter results;
+            if (null == inDir) {
+                results = new TaskResultsWriter(TASK_RESULTS_FILE, 4 * maxThreads, metrics, archive, this.getLogger());
+            } else {
+                File outputFile = new File(inDir, TASK_RESULTS_FILE);
+                File journalFile = new File(inDir, TASK_JOURNAL_FILE);
+                results = new TaskResultsWriter(outputFile, journalFile, 4 * maxThreads, metrics, archive, this.getLogger());
+            }
 
-        int submittedTasks = 0;
-        for (Task t : jobConfig.tasks) {
-            CocoonTaskRunner taskRunner = new CocoonTaskRunner(t, resolver, this.getLogger(),
-                    os, ++submittedTasks, maxThreads);
-            jobExecutor.submit(taskRunner, taskRunner);
-        }
-        jobConfig.tasks = null;
+            if (results.isCompleted(0)) {
+                // The header has sequence number 0, the tasks start at 1.
+                completedTasks = results.completedCount() - 1;
+                this.getLogger().info(String.format("Resuming job, %s of %s tasks were completed before.", completedTasks, totalTasks));
+            } else {
+                results.write(0, false, String.format("<tasks job-id=\"%s\" job-name=\"%s\">", jobConfig.id, jobConfig.name));
+            }
 
-        if (this.getLogger().isDebugEnabled()) {
-            this.getLogger().debug("Submitted " + submittedTasks + " tasks.");
-        }
-        this.getLogger().info(String.format("Submitted %s tasks.", submittedTasks));
-        boolean interrupted = false;
+            // Recent task latencies, only kept for a speculative job.
+            TaskLatencies latencies = Boolean.TRUE.equals(jobConfig.speculative) ? new TaskLatencies(SPECULATION_LATENCIES) : null;
+
+            // Tasks whose host is at its limit wait here, null if no host has a limit.
+            TaskThrottle throttle = TaskThrottle.isNeeded(hostLimits, jobConfig.hostLimits) ?
+                    new TaskThrottle(hostLimits, jobConfig.hostLimits, MAX_DEFERRED_TASKS) : null;
+            // Tasks that wait for the tasks they depend on, null if no task depends on another.
+            TaskGraph graph = dependencies.isEmpty() ? null : new TaskGraph(dependencies);
+
+            JobPriority priority = JobPriority.fromAttribute(jobConfig.priority);
+            fairShare.register(jobConfig, priorityWeights.get(null == priority ? lane : priority));
+            metrics.jobStarted();
 
-        threadPool.shutdown(); // Means: process all tasks.
-        
-        while (!threadPool.isTerminated() && !interrupted && completedTasks < totalTasks) {
-            Future<CocoonTaskRunner> f = null;
-            Task task = null;
             try {
-                if (this.getLogger().isDebugEnabled()) {
-                    this.getLogger().debug("Retrieving next finished task.");
-                }
+                long lastStatusWrite = 0;
+                int submittedTasks = 0;
+                int inFlight = 0;
+                boolean allSubmitted = false;
+                boolean interrupted = false;
+
+                while (!interrupted) {
+                    if (null != graph) {
+                        completedTasks += writeSkippedTasks(graph, results);
+                    }
+                    // Set when the deferred tasks could not start because of the limits of their hosts.
+                    boolean throttled = false;
+                    while ((!allSubmitted || (null != throttle && !throttle.isEmpty()) || (null != graph && graph.hasReady()))
+                            && inFlight < Math.min(maxInFlight, fairShare.share(jobConfig))
+                            && (null == adaptiveLimit || inFlight < adaptiveLimit.getLimit()) && permits.tryAcquire()) {
+                        Task t = null;
+                        int sequenceNumber = 0;
+                        if (null != throttle) {
+                            TaskThrottle.Deferred deferred = throttle.startDeferred();
+                            if (null != deferred) {
+                                t = deferred.task;
+                                sequenceNumber = deferred.sequenceNumber;
+                            }
+                        }
+                        while (null == t) {
+                            Task next;
+                            int nextSequenceNumber;
+                            TaskGraph.Waiting ready = null == graph ? null : graph.pollReady();
+                            if (null != ready) {
+                                next = ready.task;
+                                nextSequenceNumber = ready.sequenceNumber;
+                            } else if (!allSubmitted && (null == throttle || !throttle.isFull())
+                                    && (null == graph || graph.heldCount() < MAX_HELD_TASKS || 0 == inFlight)) {
+                                next = jobReader.nextTask();
+                                // Skip tasks that were completed before the job was interrupted.
+                                while (null != next && results.isCompleted(submittedTasks + 1)) {
+                                    submittedTasks++;
+                                    if (null != graph) {
+                                        graph.finished(next.id, !results.isFailed(submittedTasks));
+                                    }
+                                    next = jobReader.nextTask();
+                                }
+                                if (null == next) {
+                                    allSubmitted = true;
+                                    if (this.getLogger().isDebugEnabled()) {
+                                        this.getLogger().debug("Submitted " + submittedTasks + " tasks.");
+                                    }
+                                    continue;
+                                }
+                                nextSequenceNumber = ++submittedTasks;
+                                if (null != graph && !graph.offer(next, nextSequenceNumber)) {
+                                    // It waits for the tasks it depends on.
+                                    continue;
+                                }
+                            } else {
+                                break;
+                            }
+                            if (null == throttle || throttle.tryStart(next)) {
+                                t = next;
+                                sequenceNumber = nextSequenceNumber;
+                            } else {
+                                throttle.defer(next, nextSequenceNumber);
+                            }
+                        }
+                        if (null == t) {
+                            permits.release();
+                            throttled = null != throttle && !throttle.isEmpty();
+                            break;
+                        }
+                        CocoonTaskRunner taskRunner = new CocoonTaskRunner(t, resolver, this.getLogger(),
+                                results, sequenceNumber, maxThreads, finishedTasks, jobConfig.taskTimeout);
+                        if (Boolean.TRUE.equals(jobConfig.cache)) {
+                            taskRunner.cache = resultCache;
+                        }
+                        taskRunner.future = workerPool().submit(taskRunner, taskRunner);
+                        running.add(taskRunner);
+                        inFlight++;
+                    }
+                    if (0 == inFlight && !throttled) {
+                        if (null != graph && !graph.hasSkipped() && allSubmitted && graph.heldCount() > 0) {
+                            this.getLogger().warn(String.format("%d tasks of job %s depend on tasks that do not exist, or on each other.",
+                                    graph.heldCount(), jobConfig.name));
+                            graph.skipUnresolved();
+                        }
+                        if (null == graph || !graph.hasSkipped()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    Task task = null;
+                    try {
+                        if (this.getLogger().isDebugEnabled()) {
+                            this.getLogger().debug("Retrieving next finished task.");
+                        }
 
-                f = jobConfig.taskTimeout > 0 ?
-                        jobExecutor.poll(jobConfig.taskTimeout, TimeUnit.SECONDS) :
-                        jobExecutor.take();
+                        // A task that times out is put here by its deadline, so this does not wait longer than task-timeout for any task.
+                        CocoonTaskRunner ctr;
+                        // How long to wait for a finished task, or -1 to wait until there is one.
+                        long wait = -1;
+                        if (null != latencies && allSubmitted) {
+                            int limit = Math.min(maxInFlight, fairShare.share(jobConfig));
+                            if (null != adaptiveLimit) {
+                                limit = Math.min(limit, adaptiveLimit.getLimit());
+                            }
+                            wait = speculate(running, latencies, permits, limit, throttle);
+                        }
+                        if (throttled) {
+                            // Try again when the rate of a host allows it.
+                            wait = wait < 0 ? throttle.waitTime() : Math.min(wait, throttle.waitTime());
+                        }
+                        if (wait >= 0) {
+                            ctr = finishedTasks.poll(wait, TimeUnit.MILLISECONDS);
+                            if (null == ctr) {
+                                continue;
+                            }
+                        } else {
+                            ctr = finishedTasks.take();
+                        }
 
-                if (null == f) {
-                    this.getLogger().error("Failed getting next finished task (timeout=" + jobConfig.taskTimeout + "), quitting.");
-                    // interrupted = true;
-                } else {
-                    if (this.getLogger().isDebugEnabled()) {
-                        this.getLogger().debug("Got finished task.");
+                        if (this.getLogger().isDebugEnabled()) {
+                            this.getLogger().debug("Got finished task.");
+                        }
+                        if (running.remove(ctr)) {
+                            permits.release();
+                        }
+                        if (ctr.superseded) {
+                            // The other runner of the task has written the result.
+                            continue;
+                        }
+                        if (null != ctr.sibling && running.remove(ctr.sibling)) {
+                            // Do not wait for the other runner, like a task that timed out.
+                            ctr.sibling.future.cancel(true);
+                            permits.release();
+                        }
+                        if (null != latencies && !ctr.timedOut) {
+                            latencies.add(ctr.latency);
+                        }
+                        task = ctr.task;
+                        if (null != throttle) {
+                            throttle.finished(task);
+                        }
+                        if (null != graph) {
+                            graph.finished(task.id, !ctr.failed);
+                        }
+                        if (ctr.timedOut && this.getLogger().isInfoEnabled()) {
+                            this.getLogger().info("Task " + task.id + " timed out.");
+                        }
+                        if (null != adaptiveLimit && adaptiveLimit.sample(ctr.latency, ctr.failed, inFlight)
+                                && this.getLogger().isInfoEnabled()) {
+                            this.getLogger().info("Concurrency limit of job " + jobConfig.name + " is now " + adaptiveLimit.getLimit());
+                        }
+                    } catch (InterruptedException iex) {
+                        this.getLogger().error("Received InterruptedException, quitting executing tasks.");
+                        interrupted = true;
+                    } catch (CascadingRuntimeException ex) {
+                        this.getLogger().error("Received CascadingRuntimeException, ignoring, continuing with other tasks.");
                     }
-                    CocoonTaskRunner ctr = f.get();
-                    task = ctr.task;
-                }
-            } catch (ExecutionException eex) {
-                this.getLogger().error("Received ExecutionException for task, ignoring, continuing with other tasks: ex = " + eex.getMessage());
-            } catch (InterruptedException iex) {
-                this.getLogger().error("Received InterruptedException, quitting executing tasks.");
-                interrupted = true;
-                break;
-            } catch (CascadingRuntimeException ex) {
-                this.getLogger().error("Received CascadingRuntimeException, ignoring, continuing with other tasks.");
+                    if (interrupted) {
+                        cancelTasks(running);
+                        break;
+                    }
+                    inFlight--;
+                    completedTasks++;
+                    if (this.getLogger().isInfoEnabled()) {
+                        this.getLogger().info("Tasks completed: " + completedTasks + "/" + totalTasks);
+                    }
+                    // The heartbeat keeps the lease, so the status does not have to be written for every task.
+                    long now = System.currentTimeMillis();
+                    if (null != statusFile && (now - lastStatusWrite >= statusInterval || completedTasks == totalTasks)) {
+                        writeProcessorStatus(statusFile, jobConfig.name, task, jobStartedAt, totalTasks, completedTasks);
+                        lastStatusWrite = now;
+                    }
+                    interrupted = null != inDir && externallyInterrupted(inDir);
+                    if (interrupted) {
+                        this.getLogger().info("Current job interrupted by stop file.");
+                        if (this.getLogger().isInfoEnabled()) {
+                            this.getLogger().info("Cancelling " + running.size() + " running tasks.");
+                        }
+                        cancelTasks(running);
+                    }
+                }
+
+                results.write("</tasks>");
+            } finally {
+                if (null != throttle) {
+                    throttle.releaseAll();
+                }
+                fairShare.unregister(jobConfig);
+                metrics.jobFinished();
+                results.close();
+                this.manager.release(resolver);
             }
-            completedTasks++;
+        } finally {
+            jobReader.close();
+        }
+    }
+
+
+    /**
+     * Write the results of the tasks that are skipped because a task they
+     * depend on failed, or because their dependencies could not be resolved.
+     *
+     * @return The number of tasks that were skipped.
+     */
+    private int writeSkippedTasks(TaskGraph graph, TaskResultsWriter results) {
+        int count = 0;
+        TaskGraph.Waiting skipped;
+        while (null != (skipped = graph.pollSkipped())) {
+            String reason = null == skipped.failedDependency ?
+                    "The tasks this task depends on do not exist, or depend on this task." :
+                    String.format("Task %s, which this task depends on, failed.", skipped.failedDependency);
+            results.write(skipped.sequenceNumber, true,
+                    String.format("<task id=\"%s\" seq=\"%d\" uri=\"%s\">", StringEscapeUtils.escapeXml(skipped.task.id),
+                            skipped.sequenceNumber, StringEscapeUtils.escapeXml(skipped.task.uri)),
+                    "<task-error type=\"dependency\">", StringEscapeUtils.escapeXml(reason), "</task-error></task>");
             if (this.getLogger().isInfoEnabled()) {
-                this.getLogger().info("Tasks completed: " + completedTasks + "/" + totalTasks);
+                this.getLogger().info("Task " + skipped.task.id + " is skipped: " + reason);
             }
-            writeProcessorStatus(jobConfig.name, task, jobStartedAt, totalTasks, completedTasks);
-            if (!interrupted) {
-                interrupted = externallyInterrupted();
-                if (interrupted) {
-                    this.getLogger().info("Current job interrupted by stop file.");
-                }
+            // The tasks that depend on this one are skipped as well.
+            graph.finished(skipped.task.id, false);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Start a second runner for the tasks of a speculative job that have been
+     * running much longer than the median task, as long as the job has free
+     * permits. Whichever runner finishes first writes the result, the other
+     * one is cancelled.
+     *
+     * @param running The runners of the job, the new runners are added.
+     * @param latencies The latencies of the tasks that have finished.
+     * @param permits The permits of the job.
+     * @param limit The maximum number of runners of the job.
+     * @param throttle The throttle of the job, or null. Tasks whose host has
+     * a limit are not started twice.
+     * @return How long to wait (ms) until a task may become slow.
+     */
+    private long speculate(Set<CocoonTaskRunner> running, TaskLatencies latencies, Semaphore permits, int limit, TaskThrottle throttle) {
+        if (latencies.size() < speculationMinTasks) {
+            return SPECULATION_POLL_INTERVAL;
+        }
+        long threshold = Math.max(1L, (long) (speculationFactor * latencies.median()));
+        long now = System.nanoTime();
+        long wait = SPECULATION_POLL_INTERVAL;
+        List<CocoonTaskRunner> slow = new ArrayList<CocoonTaskRunner>();
+        for (CocoonTaskRunner runner : running) {
+            long started = runner.startNanos;
+            // Skip tasks that are waiting for a thread, or that already have a second runner.
+            if (0 == started || null != runner.sibling || (null != throttle && throttle.isLimited(runner.task))) {
+                continue;
             }
-            if (interrupted) {
-                if (this.getLogger().isInfoEnabled()) {
-                    this.getLogger().info("Calling threadPool.shutdownNow().");
-                }
-                threadPool.shutdownNow();
+            long remaining = threshold - TimeUnit.NANOSECONDS.toMillis(now - started);
+            if (remaining <= 0) {
+                slow.add(runner);
+            } else {
+                wait = Math.min(wait, remaining);
+            }
+        }
+        // The slowest first.
+        Collections.sort(slow, new Comparator<CocoonTaskRunner>() {
+            @Override
+            public int compare(CocoonTaskRunner a, CocoonTaskRunner b) {
+                return Long.compare(a.startNanos, b.startNanos);
+            }
+        });
+        for (CocoonTaskRunner runner : slow) {
+            if (running.size() >= limit || !permits.tryAcquire()) {
                 break;
             }
+            CocoonTaskRunner duplicate = new CocoonTaskRunner(runner);
+            duplicate.future = workerPool().submit(duplicate, duplicate);
+            running.add(duplicate);
+            metrics.taskSpeculated();
+            if (this.getLogger().isInfoEnabled()) {
+                this.getLogger().info(String.format("Task %s (%s) is running longer than %d ms, starting it again.",
+                        runner.task.id, runner.task.uri, threshold));
+            }
         }
-        
-        writeOutputStream(os, "</tasks>");
-        os.close();
-        this.manager.release(resolver);
+        return Math.max(1L, wait);
     }
 
+    /**
+     * Interrupt the tasks of a job that are still running, or keep them from
+     * starting. The worker pool itself keeps running for other jobs.
+     *
+     * @param running The runners of the tasks.
+     */
+    private void cancelTasks(Set<CocoonTaskRunner> running) {
+        for (CocoonTaskRunner runner : running) {
+            runner.future.cancel(true);
+        }
+        running.clear();
+    }
 
     /**
-     * Return true if there's a file called "stop-job.txt" in the "in"-folder, false otherwise.
+     * Return true if there's a file called "stop-job.xml" in the work directory, false otherwise.
+     * @param workDir The work directory of the job.
      * @return boolean
      */
-    Boolean externallyInterrupted() {
+    Boolean externallyInterrupted(File workDir) {
         this.getLogger().info("Checking for stop-file.");
-        return Files.exists(stopFile());
+        return Files.exists(stopFile(workDir));
     }
 
 
     /**
      * Return File object for stop-file. May exist, may not exist.
+     * Without a node-id, this is "in-progress/stop-job.xml".
+     * @param workDir The work directory of the job.
      * @return File object for stop-file.
      */
-    Path stopFile() {
-        String stopFilename = this.queuePath + "/" + processingDirName + "/" + STOP_JOB_FILENAME;
-        return Paths.get(stopFilename);
+    Path stopFile(File workDir) {
+        return new File(workDir, STOP_JOB_FILENAME).toPath();
     }
 
 
@@ -513,176 +1348,787 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
      * Process the URI in one Task. All errors are caught, if one task goes bad
      * continue processing the others.
      *
-     * @param task Task containing uri to fetch
-     * @param manager Cocoon servicemanager (so cocoon: protocol is allowed.)
-     * @param logger For logging stuff
-     * @param os Where the output ends up.
+     * @param runner The runner of the task, which resolves and releases its Source
+     * @param doc The document the result is imported into
      * @return the output as a String object
      */
-    private Element processPipeline(Task task,
-            SourceResolver resolver,
-            org.apache.avalon.framework.logger.Logger logger,
-            Document doc)  {
-        Source src = null;
-        InputStream is = null;
+    private Element processPipeline(CocoonTaskRunner runner, Document doc)  {
         Element node = null;
-        Map parameters = null;
 
         try {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Going to resolve " + task.uri);
-            }
-            
-            logger.info("Going to resolve " + task.uri);
-            if (null != task.content) {
-                logger.info("Document to post = " + task.content);
-                StringBuilder taskContentString = new StringBuilder();
-                StringWriter writer = new StringWriter();
-                StreamResult result = new StreamResult(writer);
-                TransformerFactory tf = TransformerFactory.newInstance();
-                Transformer transformer = tf.newTransformer();
-                for(int k=0 ; k < task.content.getLength() ; k++){
-                    DOMSource domSource = new DOMSource((Node) task.content.item(k));
-                    transformer.transform(domSource, result);
-                    taskContentString.append(writer.toString());
-                }
-                // logger.info("[" + taskContentString + "]");
-
-
-                parameters = new HashMap();
-                parameters.put(Source.class.getName()+".uri.encoding", "UTF-8");
-                parameters.put(Source.class.getName()+".uri.method", "POST");
-//                parameters.put(Source.class.getName()+".uri.mimetype", "text/xml");
-                SourceParameters sourceParameters = new SourceParameters();
-                sourceParameters.setParameter(contentParameter, taskContentString.toString());
-                parameters.put(Source.class.getName() + ".uri.parameters", sourceParameters);
-            }
-
-            src = resolver.resolveURI(task.uri, null, parameters);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Resolved " + task.uri);
-            }
+            Source src = runner.openSource();
             Document srcDoc = SourceUtil.toDOM(src);
             Node srcNode = srcDoc.getFirstChild();
             node = (Element)doc.importNode(srcNode, true);
         } catch (Exception ex) {
+            runner.failed = true;
             node = doc.createElement("task-error");
             node.appendChild(doc.createTextNode(ex.getLocalizedMessage()));
         } finally {
-            try {
-                if (null != is) {
-                    is.close();
-                }
-            } catch (IOException ex) {
-                Logger.getLogger(QueueProcessorCronJob.class.getName()).log(Level.SEVERE, null, ex);
-            } finally {
-                if (null != src) {
-                    resolver.release(src);
-                    src = null;
-                }
-            }
+            runner.closeSource();
         }
         return node;
     }
 
     /**
-     * Check if there's a job in the processingDir. If yes then abstain if
-     * Processor = ALIVE, remove it otherwise. If No then move oldest job to
-     * processingDir, process that job.
+     * Process the URI in one Task, and serialize the SAX events of the result
+     * directly, without building (and importing) a DOM. All errors are caught,
+     * in that case the result is a task-error element.
+     *
+     * @param runner The runner of the task, which resolves and releases its Source
+     * @return the serialized output
      */
-    private void processQueue() throws IOException {
-
-        /*
-         Create subdirs if necessary.
-         */
-        File queueDir = getOrCreateDirectory(this.queuePath, "");
-        File inDir = getOrCreateDirectory(queueDir, inDirName);
-        File processingDir = getOrCreateDirectory(queueDir, processingDirName);
-        File outDir = getOrCreateDirectory(queueDir, outDirName);
-        File errorDir = getOrCreateDirectory(queueDir, errorDirName);
+    private String streamPipeline(CocoonTaskRunner runner) {
+        try {
+            Source src = runner.openSource();
+            StringWriter writer = new StringWriter();
+            TransformerHandler serializer;
+            synchronized (saxTransformerFactory) {
+                serializer = saxTransformerFactory.newTransformerHandler();
+            }
+            serializer.getTransformer().setOutputProperties(XMLUtils.createPropertiesForXML(true));
+            serializer.setResult(new StreamResult(writer));
+            SourceUtil.toSAX(src, serializer);
+            return writer.toString();
+        } catch (Exception ex) {
+            runner.failed = true;
+            return "<task-error>" + StringEscapeUtils.escapeXml(String.valueOf(ex.getLocalizedMessage())) + "</task-error>";
+        } finally {
+            runner.closeSource();
+        }
+    }
 
+    /**
+     * Resolve the URI of a task. If the task has content, it is posted in the
+     * "document" parameter.
+     *
+     * @param task Task containing uri to fetch
+     * @param resolver For resolving the uri
+     * @param logger For logging stuff
+     * @return The resolved source, which must be released by the caller.
+     */
+    private Source resolveTask(Task task,
+            SourceResolver resolver,
+            org.apache.avalon.framework.logger.Logger logger) throws Exception {
+        Map parameters = null;
 
-        // Get status of Queue
-        QueueProcessorCronJob.QueueStatus qStatus = queueStatus();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Going to resolve " + task.uri);
+        }
 
-        if (qStatus == QueueStatus.ACTIVE) {
-            // Get status of Processor
-            QueueProcessorCronJob.ProcessorStatus pStatus = processorStatus();
+        logger.info("Going to resolve " + task.uri);
+        if (null != task.content) {
+            // The content was serialized when the job file was read.
+            String document = new String(task.content, StandardCharsets.UTF_8);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Document to post = " + document);
+            }
 
-            File currentJobFile = getOldestJobFile(processingDir);
+            parameters = new HashMap();
+            parameters.put(Source.class.getName()+".uri.encoding", "UTF-8");
+            parameters.put(Source.class.getName()+".uri.method", "POST");
+//            parameters.put(Source.class.getName()+".uri.mimetype", "text/xml");
+            SourceParameters sourceParameters = new SourceParameters();
+            sourceParameters.setParameter(contentParameter, document);
+            parameters.put(Source.class.getName() + ".uri.parameters", sourceParameters);
+        }
+
+        Source src = resolver.resolveURI(task.uri, null, parameters);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Resolved " + task.uri);
+        }
+        return src;
+    }
+
+    /**
+     * Fill the job slots with jobs and process them. For every slot, check if
+     * there's a job in its work directory. If yes then abstain if
+     * Processor = ALIVE, remove it otherwise. If No then claim the oldest job
+     * from the highest priority lane by moving it to the work directory, and
+     * process that job in a separate thread.
+     * <p>
+     * This method returns when all slots are idle and there are no more jobs.
+     * While jobs are running, free slots are filled with new jobs.
+     * <p>
+     * When a node-id is configured, the work directories are in a
+     * subdirectory of "in-progress" named after the node, and several nodes
+     * can process jobs from the same queue. Work directories of other nodes
+     * whose lease has expired are recovered.
+     */
+    private void processQueue() throws IOException {
 
+        if (!processing.compareAndSet(false, true)) {
             if (this.getLogger().isDebugEnabled()) {
-                this.getLogger().debug(String.format("Processor: %s, queueDir=%s, current job: %s", pStatus, queueDir, currentJobFile));
+                this.getLogger().debug("Already processing the queue, stopping");
             }
-            // A job is already being processed
-            if (null != currentJobFile) {
+            return;
+        }
 
-                /*
-                 * A job is processed by a live Processor -> quit now.
-                 */
-                if (pStatus.equals(QueueProcessorCronJob.ProcessorStatus.ALIVE)) {
+        /*
+         Create subdirs if necessary.
+         */
+        File queueDir = getOrCreateDirectory(this.queuePath, "");
+        File inDir = getOrCreateDirectory(queueDir, inDirName);
+        File processingDir = getOrCreateDirectory(queueDir, processingDirName);
+        File outDir = getOrCreateDirectory(queueDir, outDirName);
+        File errorDir = getOrCreateDirectory(queueDir, errorDirName);
+        File[] workDirs = workDirectories(processingDir);
+
+        ExecutorService jobThreads = Executors.newFixedThreadPool(workDirs.length);
+        Set<File> activeWorkDirs = new HashSet<File>();
+        // Take jobs from the in-memory queue and from the job files in turn, so neither starves the other.
+        boolean memoryJobFirst = true;
+
+        try {
+            if (watch || null != memoryQueue) {
+                startWatching(inDir);
+            }
+            queueEvents.clear();
+            while (true) {
+                // Get status of Queue
+                if (queueStatus() == QueueStatus.ACTIVE) {
+                    if (null != nodeId) {
+                        recoverStaleWorkDirectories(processingDir, errorDir);
+                    }
+                    for (File workDir : workDirs) {
+                        if (!activeWorkDirs.contains(workDir)) {
+                            Runnable job;
+                            // A job that was left in the work directory is resumed or cancelled first.
+                            if (memoryJobFirst && null == getOldestJobFile(workDir)) {
+                                job = claimMemoryJob(outDir, errorDir);
+                                if (null == job) {
+                                    job = claimJob(queueDir, inDir, workDir, outDir, errorDir);
+                                }
+                            } else {
+                                job = claimJob(queueDir, inDir, workDir, outDir, errorDir);
+                                if (null == job) {
+                                    job = claimMemoryJob(outDir, errorDir);
+                                }
+                            }
+                            if (null == job) {
+                                break;
+                            }
+                            memoryJobFirst = !(job instanceof MemoryJobRunner);
+                            activeWorkDirs.add(workDir);
+                            jobThreads.execute(new JobCompletion(job, workDir));
+                        }
+                    }
+                }
 
+                if (activeWorkDirs.isEmpty()) {
+                    if (null != queueEvents.poll()) {
+                        // A job was submitted after we looked.
+                        continue;
+                    }
                     if (this.getLogger().isDebugEnabled()) {
-                        this.getLogger().debug(String.format("Active job \"%s\" in queue \"%s\", stopping", currentJobFile, queueDir));
+                        this.getLogger().debug("No job, stopping");
                     }
-                } else {
-                    /*
-                     * A job was processed, but the Processor is dead.
-                     * Move job tot error-folder. Clean processing folder.
-                     */
-                    this.getLogger().warn(String.format("Stale job \"%s\" in queue \"%s\", cancelling job and stopping", currentJobFile, queueDir));
-                    moveFileTo(currentJobFile, new File(errorDir, currentJobFile.getName()));
-                    FileUtils.cleanDirectory(processingDir);
+                    break;
                 }
-            } else {
-                // No job being processed.
 
-                File jobFile = getOldestJobFile(inDir);
+                // Wait for a job to finish, but look for new jobs regularly (or when one is submitted) if a slot is free.
+                File event = activeWorkDirs.size() < workDirs.length ?
+                        queueEvents.poll(SLOT_POLL_INTERVAL, TimeUnit.MILLISECONDS) :
+                        queueEvents.take();
+                while (null != event) {
+                    activeWorkDirs.remove(event);
+                    event = queueEvents.poll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            this.getLogger().error("Interrupted while waiting for jobs, stopping");
+            Thread.currentThread().interrupt();
+        } finally {
+            jobThreads.shutdown();
+            processing.set(false);
+            if (!queueEvents.isEmpty() && null != watchExecutor) {
+                // A job was submitted while we were stopping.
+                triggerProcessing();
+            }
+        }
+    }
 
-                if (jobFile != null) {
+    /**
+     * Return the work directories, one for each job slot. With one slot, this
+     * is "in-progress" or "in-progress/{node-id}". With more slots, these
+     * directories have a "slot-{n}" subdirectory for every slot.
+     *
+     * @param processingDir The "in-progress" directory.
+     * @return The work directories.
+     */
+    private File[] workDirectories(File processingDir) {
+        File nodeDir = null == nodeId ? processingDir : getOrCreateDirectory(processingDir, nodeId);
+        if (1 == jobSlots) {
+            return new File[] { nodeDir };
+        }
+        File[] workDirs = new File[jobSlots];
+        for (int slot = 0; slot < jobSlots; slot++) {
+            workDirs[slot] = getOrCreateDirectory(nodeDir, SLOT_PREFIX + (slot + 1));
+        }
+        return workDirs;
+    }
 
-                    // First delete any old stop-file if present.
-                    this.getLogger().info("Deleting stop-file " + stopFile());
-                    Files.deleteIfExists(stopFile());
+    /**
+     * Claim a job for an idle work directory, if there is one.
+     *
+     * @return A JobRunner for the claimed job, or null if there is no job for
+     * this work directory.
+     */
+    private JobRunner claimJob(File queueDir, File inDir, File workDir, File outDir, File errorDir) throws IOException {
+        File currentJobFile = getOldestJobFile(workDir);
 
-                    String jobFileName = jobFile.getName();
-                    File currentJob = new File(processingDir, jobFileName);
+        if (null == nodeId) {
+            // Get status of Processor
+            QueueProcessorCronJob.ProcessorStatus pStatus = processorStatus(processorStatusFile(workDir));
 
-                    try {
+            if (this.getLogger().isDebugEnabled()) {
+                this.getLogger().debug(String.format("Processor: %s, queueDir=%s, current job: %s", pStatus, queueDir, currentJobFile));
+            }
 
-                        FileUtils.cleanDirectory(processingDir);
+            /*
+             * A job is processed by a live Processor -> quit now.
+             */
+            if (null != currentJobFile && pStatus.equals(QueueProcessorCronJob.ProcessorStatus.ALIVE)) {
+                if (this.getLogger().isDebugEnabled()) {
+                    this.getLogger().debug(String.format("Active job \"%s\" in queue \"%s\", stopping", currentJobFile, queueDir));
+                }
+                return null;
+            }
+        }
 
-                        writeProcessorStatus(jobFileName, null, new DateTime(), 0, 0);
+        // A job is in our work directory, but we are not processing it.
+        ResumeState resume = null;
+        if (null != currentJobFile && new File(workDir, TASK_JOURNAL_FILE).exists()) {
+            resume = ResumeState.read(workDir);
+        }
+        if (null != resume && resume.resumes < maxResumes) {
+            /*
+             * The Processor died while processing the job. Resume it in its
+             * own lane, the tasks in the journal are not executed again.
+             */
+            this.getLogger().warn(String.format("Interrupted job \"%s\" in queue \"%s\", resuming job (attempt %d of %d)",
+                    currentJobFile, queueDir, resume.resumes + 1, maxResumes));
+            ResumeState.write(workDir, resume.lane, resume.resumes + 1);
+            writeProcessorStatus(processorStatusFile(workDir), "none", null, new DateTime(), 0, 0);
+            return new JobRunner(queueDir, workDir, outDir, errorDir, currentJobFile, resume.lane);
+        }
+        if (null != resume) {
+            /*
+             * The job was interrupted every time it was resumed, it probably
+             * kills the JVM. Give up on it.
+             */
+            this.getLogger().error(String.format("Job \"%s\" in queue \"%s\" was interrupted after %d resumes, cancelling job",
+                    currentJobFile, queueDir, resume.resumes));
+            cancelJobs(workDir, errorDir);
+        } else if (null != currentJobFile) {
+            /*
+             * A job was processed, but the Processor is dead.
+             * Move job tot error-folder. Clean processing folder.
+             */
+            this.getLogger().warn(String.format("Stale job \"%s\" in queue \"%s\", cancelling job", currentJobFile, queueDir));
+            cancelJobs(workDir, errorDir);
+        }
 
-                        if (this.getLogger().isDebugEnabled()) {
-                            this.getLogger().debug(String.format("Processing job \"%s\" in queue \"%s\"", jobFileName, queueDir));
-                        }
+        File[] jobFiles = null;
+        JobPriority lane = null;
+        for (JobPriority priority : JobPriority.values()) {
+            jobFiles = getJobFilesOldestFirst(priority.laneDirectory(inDir), CLAIM_CANDIDATES);
+            if (jobFiles.length > 0) {
+                lane = priority;
+                break;
+            }
+        }
+        if (null == lane) {
+            return null;
+        }
 
-                        moveFileTo(jobFile, currentJob);
+        // First delete any old stop-file if present.
+        this.getLogger().info("Deleting stop-file " + stopFile(workDir));
+        Files.deleteIfExists(stopFile(workDir));
+        FileUtils.cleanDirectory(workDir);
 
-                        if (this.getLogger().isDebugEnabled()) {
-                            this.getLogger().debug(String.format("Moved job \"%s\" to \"%s\"", jobFile, currentJob));
-                        }
+        // Take the lease before claiming a job, so other nodes never see a job without a lease.
+        File statusFile = processorStatusFile(workDir);
+        writeProcessorStatus(statusFile, "none", null, new DateTime(), 0, 0);
 
-                        processCurrentJobConcurrently(processingDir, currentJob);
+        File currentJob = claimOldestJob(jobFiles, workDir);
+        if (null == currentJob) {
+            deleteProcessorStatus(statusFile);
+            if (this.getLogger().isDebugEnabled()) {
+                this.getLogger().debug("All jobs were claimed by other nodes");
+            }
+            return null;
+        }
+        ResumeState.write(workDir, lane, 0);
+        return new JobRunner(queueDir, workDir, outDir, errorDir, currentJob, lane);
+    }
 
-                        finishUpJob(processingDir, outDir, currentJob);
+    /**
+     * The lane of the job in a work directory, and the number of times it has
+     * been resumed after the Processor died, as kept in resume-state.txt.
+     */
+    private static final class ResumeState {
 
-                    } catch (Exception e) { // Catch IOException AND catch ClassCast exception etc.
-                        this.getLogger().error("Error processing job \"" + jobFileName + "\"", e);
-                        moveFileTo(currentJob, new File(errorDir, jobFileName));
-                        String stackTrace = ExceptionUtils.getFullStackTrace(e);
-                        FileUtils.writeStringToFile(new File(errorDir, FilenameUtils.removeExtension(jobFileName) + ".txt"), stackTrace, "UTF-8");
-                    } finally {
-                        FileUtils.cleanDirectory(processingDir);
-                        deleteProcessorStatus();
-                    }
-                } else {
-                    if (this.getLogger().isDebugEnabled()) {
-                        this.getLogger().debug("No job, stopping");
-                    }
+        final JobPriority lane;
+        final int resumes;
+
+        private ResumeState(JobPriority lane, int resumes) {
+            this.lane = lane;
+            this.resumes = resumes;
+        }
+
+        /**
+         * Read the state of a work directory. A job that was claimed without
+         * it is taken to be in the normal lane, and not resumed before.
+         */
+        static ResumeState read(File workDir) {
+            try {
+                String[] state = FileUtils.readFileToString(new File(workDir, RESUME_STATE_FILE), "UTF-8").trim().split(" ");
+                return new ResumeState(JobPriority.valueOf(state[0]), Integer.parseInt(state[1]));
+            } catch (IOException ex) {
+                return new ResumeState(JobPriority.NORMAL, 0);
+            } catch (RuntimeException ex) {
+                return new ResumeState(JobPriority.NORMAL, 0);
+            }
+        }
+
+        static void write(File workDir, JobPriority lane, int resumes) throws IOException {
+            FileUtils.writeStringToFile(new File(workDir, RESUME_STATE_FILE), lane.name() + " " + resumes, "UTF-8");
+        }
+    }
+
+    /**
+     * Take the next job of the in-memory queue, if there is one.
+     *
+     * @return A MemoryJobRunner for the job, or null if there is no in-memory
+     * job.
+     */
+    private MemoryJobRunner claimMemoryJob(File outDir, File errorDir) {
+        if (null == memoryQueue) {
+            return null;
+        }
+        MemoryQueue.Job job = memoryQueue.poll();
+        return null == job ? null : new MemoryJobRunner(job, outDir, errorDir);
+    }
+
+    /**
+     * Runs a job and reports when it is done, by putting its work directory
+     * in queueEvents. A job of the in-memory queue takes up the slot of the
+     * work directory, but does not use the directory.
+     */
+    private class JobCompletion implements Runnable {
+
+        private final Runnable job;
+        private final File workDir;
+
+        public JobCompletion(Runnable job, File workDir) {
+            this.job = job;
+            this.workDir = workDir;
+        }
+
+        @Override
+        public void run() {
+            try {
+                job.run();
+            } finally {
+                queueEvents.add(workDir);
+            }
+        }
+    }
+
+    /**
+     * Start watching the "in" directories (with watch) and the in-memory queue,
+     * if that has not been done yet. Must be called from the trigger thread,
+     * because the Cocoon environment of that thread is used for jobs that are
+     * started when they are submitted.
+     *
+     * @param inDir The "in" directory.
+     */
+    private synchronized void startWatching(File inDir) throws IOException {
+        if (null != watchExecutor) {
+            return;
+        }
+        watchProcess = new CocoonRunnable() {
+            @Override
+            protected void doRun() {
+                watchTriggered.set(false);
+                try {
+                    processQueue();
+                } catch (IOException ex) {
+                    getLogger().error("Error processing the queue", ex);
+                }
+            }
+        };
+        if (watch) {
+            JobPriority[] lanes = JobPriority.values();
+            File[] dirs = new File[lanes.length];
+            for (int i = 0; i < lanes.length; i++) {
+                dirs[i] = lanes[i].laneDirectory(inDir);
+                dirs[i].mkdirs();
+            }
+            watcher = new JobDirectoryWatcher(dirs, new Runnable() {
+                @Override
+                public void run() {
+                    queueEvents.add(NEW_JOB);
+                    triggerProcessing();
+                }
+            }, this.getLogger());
+            if (this.getLogger().isInfoEnabled()) {
+                this.getLogger().info("Watching " + inDir + " for new jobs.");
+            }
+        }
+        watchExecutor = Executors.newSingleThreadExecutor(daemonThreads("queue-processor-watch"));
+    }
+
+    /**
+     * Process the queue in the watch thread, unless that is already going to
+     * happen. If the queue is already being processed, that will pick up the
+     * new job.
+     */
+    private synchronized void triggerProcessing() {
+        if (null != watchExecutor && watchTriggered.compareAndSet(false, true)) {
+            watchExecutor.execute(watchProcess);
+        }
+    }
+
+    /**
+     * Processes one job in its own thread, so several jobs can be processed at
+     * the same time. The job file must already be in the work directory.
+     */
+    private class JobRunner extends CocoonRunnable {
+
+        private final File queueDir;
+        private final File workDir;
+        private final File outDir;
+        private final File errorDir;
+        private final File currentJob;
+        private final JobPriority lane;
+
+        public JobRunner(File queueDir, File workDir, File outDir, File errorDir, File currentJob, JobPriority lane) {
+            this.queueDir = queueDir;
+            this.workDir = workDir;
+            this.outDir = outDir;
+            this.errorDir = errorDir;
+            this.currentJob = currentJob;
+            this.lane = lane;
+        }
+
+        @Override
+        public void doRun() {
+            String jobFileName = currentJob.getName();
+            File statusFile = processorStatusFile(workDir);
+            ScheduledFuture<?> heartbeat = startHeartbeat(statusFile);
+            JobArchive archive = null;
+
+            try {
+
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug(String.format("Processing job \"%s\" in queue \"%s\"", jobFileName, queueDir));
+                }
+
+                writeProcessorStatus(statusFile, jobFileName, null, new DateTime(), 0, 0);
+
+                // Compress the results while the tasks run, instead of afterwards.
+                try {
+                    archive = new JobArchive(new File(workDir, ARCHIVE_PART_FILE), FilenameUtils.getBaseName(jobFileName), archiveLevel);
+                } catch (IOException ex) {
+                    getLogger().warn("Could not create the archive of job \"" + jobFileName + "\", it will be created when the job has finished.", ex);
+                }
+
+                processCurrentJobConcurrently(workDir, currentJob, lane, archive);
+
+                finishUpJob(workDir, outDir, currentJob, archive);
+
+            } catch (Exception e) { // Catch IOException AND catch ClassCast exception etc.
+                getLogger().error("Error processing job \"" + jobFileName + "\"", e);
+                try {
+                    moveFileTo(currentJob, new File(errorDir, jobFileName));
+                    String stackTrace = ExceptionUtils.getFullStackTrace(e);
+                    FileUtils.writeStringToFile(new File(errorDir, FilenameUtils.removeExtension(jobFileName) + ".txt"), stackTrace, "UTF-8");
+                } catch (IOException ioe) {
+                    getLogger().error("Could not move job \"" + jobFileName + "\" to the error directory", ioe);
+                }
+            } finally {
+                heartbeat.cancel(false);
+                if (null != archive) {
+                    archive.abandon();
                 }
+                // Remove the job before the lease, see recoverStaleWorkDirectories.
+                FileUtils.deleteQuietly(currentJob);
+                try {
+                    FileUtils.cleanDirectory(workDir);
+                } catch (IOException ioe) {
+                    getLogger().error("Could not clean \"" + workDir + "\"", ioe);
+                }
+                deleteProcessorStatus(statusFile);
+            }
+        }
+    }
+
+    /**
+     * Processes one job of the in-memory queue. The job is not written to a
+     * work directory, the results are written to its zip file in outDir right
+     * away, with the job itself. A job that fails is written to errorDir.
+     */
+    private class MemoryJobRunner extends CocoonRunnable {
+
+        private final MemoryQueue queue = memoryQueue;
+        private final MemoryQueue.Job job;
+        private final File outDir;
+        private final File errorDir;
+
+        public MemoryJobRunner(MemoryQueue.Job job, File outDir, File errorDir) {
+            this.job = job;
+            this.outDir = outDir;
+            this.errorDir = errorDir;
+        }
+
+        @Override
+        public void doRun() {
+            String basename = String.format("job-%s", job.id);
+            File zipPart = new File(outDir, String.format(".%s.zip.part", basename));
+            JobArchive archive = null;
+
+            try {
+
+                if (getLogger().isInfoEnabled()) {
+                    getLogger().info(String.format("Processing in-memory job \"%s\" in queue \"%s\"", job.id, queuePath));
+                }
+
+                archive = new JobArchive(zipPart, basename, archiveLevel);
+                archive.putEntry(basename + ".xml");
+                archive.write(job.content, 0, job.content.length);
+                archive.closeEntry();
+
+                Set<String> dependencies = new HashSet<String>();
+                int totalTasks = JobFileReader.countTasks(job.content, dependencies);
+                processJob(new JobFileReader(job.content), totalTasks, dependencies, null, job.lane, archive);
+
+                archive.close();
+                // Only a complete archive appears in the out directory.
+                moveFileTo(zipPart, new File(outDir, basename + ".zip"));
+
+            } catch (Exception e) { // Catch IOException AND catch ClassCast exception etc.
+                getLogger().error("Error processing in-memory job \"" + job.id + "\"", e);
+                try {
+                    FileUtils.writeByteArrayToFile(new File(errorDir, basename + ".xml"), job.content);
+                    String stackTrace = ExceptionUtils.getFullStackTrace(e);
+                    FileUtils.writeStringToFile(new File(errorDir, basename + ".txt"), stackTrace, "UTF-8");
+                } catch (IOException ioe) {
+                    getLogger().error("Could not write job \"" + job.id + "\" to the error directory", ioe);
+                }
+            } finally {
+                if (null != archive) {
+                    archive.abandon();
+                }
+                FileUtils.deleteQuietly(zipPart);
+                try {
+                    queue.finish(job);
+                } catch (IOException ioe) {
+                    getLogger().error("Could not record that job \"" + job.id + "\" has finished", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim the oldest job by moving it into the work directory. The move is
+     * atomic, so when several nodes try to claim the same job only one of them
+     * gets it, the others try the next job.
+     *
+     * @param jobFiles The oldest jobs in the in-directory, oldest first.
+     * @param workDir The directory where this processor keeps its current job.
+     * @return The claimed job file in the work directory, or null if there is no job.
+     */
+    private File claimOldestJob(File[] jobFiles, File workDir) throws IOException {
+        for (File jobFile : jobFiles) {
+            File currentJob = new File(workDir, jobFile.getName());
+            try {
+                Files.move(jobFile.toPath(), currentJob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (this.getLogger().isDebugEnabled()) {
+                    this.getLogger().debug(String.format("Moved job \"%s\" to \"%s\"", jobFile, currentJob));
+                }
+                return currentJob;
+            } catch (NoSuchFileException ex) {
+                // Another node claimed this job.
+                if (this.getLogger().isDebugEnabled()) {
+                    this.getLogger().debug(String.format("Job \"%s\" was claimed by another node", jobFile));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recover the work directories of other nodes that have a job, but whose
+     * lease (the modification time of their processor-status.xml) has expired.
+     * A work directory is first renamed, so only one node recovers it.
+     * The jobs in it are moved to the error directory.
+     *
+     * @param processingDir The "in-progress" directory.
+     * @param errorDir Where the jobs of dead nodes end up.
+     */
+    private void recoverStaleWorkDirectories(File processingDir, File errorDir) throws IOException {
+        File[] dirs = processingDir.listFiles((FileFilter) DirectoryFileFilter.INSTANCE);
+        if (null == dirs) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (dir.getName().equals(nodeId)) {
+                continue;
+            }
+            if (dir.getName().startsWith(RECOVERING_PREFIX)) {
+                // Left behind by a node that died while recovering.
+                recoverStaleWorkDirectory(processingDir, dir, errorDir);
+                continue;
             }
+            File[] slotDirs = dir.listFiles((FileFilter) new AndFileFilter(DirectoryFileFilter.INSTANCE, new PrefixFileFilter(SLOT_PREFIX)));
+            if (null != slotDirs) {
+                for (File slotDir : slotDirs) {
+                    recoverStaleWorkDirectory(processingDir, slotDir, errorDir);
+                }
+            }
+            recoverStaleWorkDirectory(processingDir, dir, errorDir);
+        }
+    }
+
+    /**
+     * Recover one work directory of another node, if it has a job and its
+     * lease has expired.
+     */
+    private void recoverStaleWorkDirectory(File processingDir, File dir, File errorDir) throws IOException {
+        boolean recovering = dir.getName().startsWith(RECOVERING_PREFIX);
+        if (!recovering && null == getOldestJobFile(dir)) {
+            return;
+        }
+        File statusFile = new File(dir, PROCESSOR_STATUS_FILE);
+        // A job is always removed before the lease, see JobRunner.
+        long lastAlive = statusFile.exists() ? statusFile.lastModified() : dir.lastModified();
+        if (System.currentTimeMillis() - lastAlive <= leaseTimeout) {
+            return;
+        }
+        File recoveryDir = dir;
+        if (!recovering) {
+            String name = processingDir.equals(dir.getParentFile().getParentFile()) ?
+                    dir.getParentFile().getName() + "-" + dir.getName() : dir.getName();
+            recoveryDir = new File(processingDir, RECOVERING_PREFIX + name + "-" + nodeId);
+            try {
+                Files.move(dir.toPath(), recoveryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // Another node is recovering this directory.
+                return;
+            }
+        }
+        this.getLogger().warn(String.format("Lease of \"%s\" has expired, cancelling its job", dir));
+        cancelJobs(recoveryDir, errorDir);
+        FileUtils.deleteDirectory(recoveryDir);
+    }
+
+    /**
+     * Move the jobs in a work directory to the error directory, and clean the
+     * work directory.
+     *
+     * @param dir The work directory.
+     * @param errorDir The error directory.
+     */
+    private void cancelJobs(File dir, File errorDir) throws IOException {
+        File jobFile;
+        while (null != (jobFile = getOldestJobFile(dir))) {
+            moveFileTo(jobFile, new File(errorDir, jobFile.getName()));
+            if (jobFile.exists()) {
+                FileUtils.forceDelete(jobFile);
+            }
+        }
+        FileUtils.cleanDirectory(dir);
+    }
+
+    /**
+     * Keep the lease on the work directory by touching its status file at
+     * regular intervals, also while no task completes for a long time.
+     *
+     * @param statusFile The processor status file.
+     * @return The scheduled heartbeat, cancel it when the job is done.
+     */
+    private ScheduledFuture<?> startHeartbeat(final File statusFile) {
+        return scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (statusFile.exists() && !statusFile.setLastModified(System.currentTimeMillis())) {
+                    getLogger().warn("Could not renew lease on " + statusFile);
+                }
+            }
+        }, leaseInterval, leaseInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (null == scheduler) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("queue-processor-scheduler"));
+        }
+        return scheduler;
+    }
+
+    /**
+     * The pool that runs the tasks of all jobs. It is created once and kept
+     * until this component is disposed, so threads are not started and
+     * stopped for every job.
+     */
+    private synchronized ExecutorService workerPool() {
+        if (null == workerPool) {
+            if (virtualWorkerThreads) {
+                workerPool = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            } else if (workerPoolThreads > 0) {
+                workerPool = Executors.newFixedThreadPool(workerPoolThreads, daemonThreads("queue-processor-worker"));
+            } else {
+                workerPool = Executors.newCachedThreadPool(daemonThreads("queue-processor-worker"));
+            }
+        }
+        return workerPool;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (null != workerPool) {
+            workerPool.shutdownNow();
+            workerPool = null;
+        }
+        if (null != watcher) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                this.getLogger().warn("Could not stop watching the queue", ex);
+            }
+            watcher = null;
+        }
+        if (null != watchExecutor) {
+            watchExecutor.shutdownNow();
+            watchExecutor = null;
+        }
+        if (null != memoryQueue) {
+            try {
+                memoryQueue.close();
+            } catch (IOException ex) {
+                this.getLogger().warn("Could not close the in-memory queue", ex);
+            }
+            memoryQueue = null;
+        }
+        if (null != metrics) {
+            metrics.unregister(this.getLogger());
         }
     }
 
@@ -719,53 +2165,95 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
     public void configure(final Configuration config) throws ConfigurationException {
         String actualQueuesDirName = config.getChild(PARAMETER_QUEUE_PATH).getValue();
         queuePath = new File(actualQueuesDirName);
+        streamResults = config.getChild(PARAMETER_STREAM_RESULTS).getValueAsBoolean(false);
+        watch = config.getChild(PARAMETER_WATCH).getValueAsBoolean(false);
+        statusInterval = config.getChild(PARAMETER_STATUS_INTERVAL).getValueAsLong(5) * 1000;
+        Configuration adaptive = config.getChild(PARAMETER_ADAPTIVE_CONCURRENCY);
+        adaptiveMin = Math.max(1, adaptive.getAttributeAsInteger("min", 1));
+        adaptiveMax = Math.max(adaptiveMin, adaptive.getAttributeAsInteger("max", 64));
+        Configuration speculation = config.getChild(PARAMETER_SPECULATION);
+        speculationFactor = Math.max(1.0, speculation.getAttributeAsFloat("factor", 3.0f));
+        speculationMinTasks = Math.max(1, speculation.getAttributeAsInteger("min-tasks", 10));
+        try {
+            archiveLevel = JobArchive.parseLevel(config.getChild(PARAMETER_ARCHIVE).getAttribute("compression", null));
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException("Invalid archive compression", config.getChild(PARAMETER_ARCHIVE), ex);
+        }
+        nodeId = config.getChild(PARAMETER_NODE_ID).getValue(null);
+        if (null != nodeId && (nodeId.trim().isEmpty() || nodeId.startsWith(RECOVERING_PREFIX) || nodeId.contains("/"))) {
+            throw new ConfigurationException("Invalid node-id \"" + nodeId + "\"", config);
+        }
+        leaseInterval = config.getChild(PARAMETER_LEASE_INTERVAL).getValueAsLong(30) * 1000;
+        leaseTimeout = config.getChild(PARAMETER_LEASE_TIMEOUT).getValueAsLong(PROCESSOR_STATUS_FILE_STALE / 1000) * 1000;
+        maxResumes = Math.max(0, config.getChild(PARAMETER_MAX_RESUMES).getValueAsInteger(3));
+        jobSlots = Math.max(1, config.getChild(PARAMETER_JOB_SLOTS).getValueAsInteger(1));
+        Configuration pool = config.getChild(PARAMETER_WORKER_POOL);
+        workerPoolThreads = Math.max(0, pool.getAttributeAsInteger("threads", 0));
+        virtualWorkerThreads = pool.getAttributeAsBoolean("virtual", false);
+        if (virtualWorkerThreads && !VirtualThreads.isAvailable()) {
+            this.getLogger().warn("Virtual threads need Java 21 or later, using platform threads for the worker pool.");
+            virtualWorkerThreads = false;
+        }
+        fairShare = new FairShare(config.getChild(PARAMETER_WORKER_THREADS).getValueAsInteger(workerPoolThreads));
+        Configuration weights = config.getChild(PARAMETER_PRIORITY_WEIGHTS);
+        for (JobPriority priority : JobPriority.values()) {
+            priorityWeights.put(priority, weights.getAttributeAsInteger(priority.name().toLowerCase(), priority.defaultWeight));
+        }
+        hostLimits = configureHostLimits(config.getChild(PARAMETER_HOST_LIMITS));
+        Configuration cache = config.getChild(PARAMETER_RESULT_CACHE, false);
+        if (null != cache) {
+            File cacheDir = new File(cache.getAttribute("dir", new File(queuePath, resultCacheDirName).getPath()));
+            try {
+                resultCache = new ResultCache(cacheDir, cache.getAttributeAsLong("ttl", 24 * 3600) * 1000,
+                        cache.getAttributeAsLong("max-size", 1024) * 1024 * 1024, this.getLogger());
+            } catch (IOException ex) {
+                throw new ConfigurationException("Could not open the result cache " + cacheDir, cache, ex);
+            }
+        }
+        final File inDir = new File(queuePath, inDirName);
+        if (config.getChild(PARAMETER_IN_MEMORY).getValueAsBoolean(false)) {
+            try {
+                memoryQueue = new MemoryQueue(queuePath, inDir, this.getLogger());
+            } catch (IOException ex) {
+                throw new ConfigurationException("Could not open the in-memory queue " + queuePath, config, ex);
+            }
+            memoryQueue.setListener(new Runnable() {
+                @Override
+                public void run() {
+                    queueEvents.add(NEW_JOB);
+                    triggerProcessing();
+                }
+            });
+            memoryQueue.register();
+        }
+        metrics = new QueueMetrics(queuePath, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int depth = null == memoryQueue ? 0 : memoryQueue.size();
+                for (JobPriority priority : JobPriority.values()) {
+                    depth += countJobFiles(priority.laneDirectory(inDir));
+                }
+                return depth;
+            }
+        });
+        metrics.register(this.getLogger());
     }
 
     /**
-     * Read job description file into JobConfig object using DOM and XPath.
-     *
-     * @param currentJob
-     * @return JobConfig
+     * Read the host-limits element of the configuration.
      */
-    private JobConfig readJobConfig(File currentJob) throws XPathExpressionException, ParseException, ParserConfigurationException, SAXException, IOException {
-
-        this.getLogger().debug(String.format("readJobConfig file \"%s\"", currentJob.getAbsolutePath()));
-
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = factory.newDocumentBuilder().parse(currentJob);
-
-        XPathFactory xpf = XPathFactory.newInstance();
-        XPath xPath = xpf.newXPath();
-
-        JobConfig jobConfig = new JobConfig();
-
-        Element job = doc.getDocumentElement();
-        NamedNodeMap attributes = job.getAttributes();
-
-        jobConfig.id = job.getAttribute("id");
-        jobConfig.description = job.getAttribute("description");
-        DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-        jobConfig.created = format.parse(job.getAttribute("created"));
-        jobConfig.maxConcurrent = Integer.parseInt(job.getAttribute("max-concurrent"));
-        jobConfig.taskTimeout = job.getAttribute("task-timeout").equals("") ? 0L : Long.parseLong(job.getAttribute("task-timeout"));
-        jobConfig.name = job.getAttribute("name");
-        jobConfig.tasks = new ArrayList<Task>();
-
-        XPathExpression expression = xPath.compile("/job/tasks/task");
-
-        NodeList tasks = (NodeList) xPath.evaluate("tasks/task", job, XPathConstants.NODESET);
-        for (int i = 0; i < tasks.getLength(); i++) {
-            Element taskXML = (Element) tasks.item(i);
-            Task task = new Task();
-            task.id = xPath.evaluate("@id", taskXML);
-            task.uri = xPath.evaluate("uri", taskXML);
-            task.content = (NodeList) xPath.evaluate("content/*", taskXML, XPathConstants.NODESET);
-            jobConfig.tasks.add(task);
+    private HostLimits configureHostLimits(Configuration config) throws ConfigurationException {
+        HostLimits limits = new HostLimits(configureLimit(config));
+        for (Configuration host : config.getChildren("host")) {
+            limits.setLimit(host.getAttribute("target"), configureLimit(host));
         }
-        return jobConfig;
+        return limits;
     }
 
+    private static HostLimits.Limit configureLimit(Configuration config) throws ConfigurationException {
+        return new HostLimits.Limit(config.getAttributeAsInteger("max-concurrent", 0),
+                config.getAttributeAsFloat("rate", 0), config.getAttributeAsFloat("burst", 0));
+    }
 
     /**
      * Return ACTIVE (No QUEUE_PAUSED_FILE present) or PAUSED (Queue is paused)
@@ -783,19 +2271,32 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
 
 
 
+    /**
+     * Return the processor status file for a work directory. When the work
+     * directory is "in-progress" it is in the queue directory, otherwise in the
+     * work directory.
+     *
+     * @param workDir The work directory.
+     * @return The status file, which may not exist.
+     */
+    private File processorStatusFile(File workDir) {
+        return workDir.equals(new File(this.queuePath, processingDirName)) ?
+                new File(this.queuePath, PROCESSOR_STATUS_FILE) : new File(workDir, PROCESSOR_STATUS_FILE);
+    }
+
     /**
      * Return NONE (No processor), ALIVE (Processor still active) or DEAD
      * (Processor hasn't updated status file for too long).
      *
+     * @param statusFile The processor status file.
      * @return ProcessorStatus: NONE, ALIVE or DEAD.
      */
-    private synchronized ProcessorStatus processorStatus() {
-        File statusFile = new File(this.queuePath, PROCESSOR_STATUS_FILE);
+    private synchronized ProcessorStatus processorStatus(File statusFile) {
         if (!statusFile.exists()) {
             return QueueProcessorCronJob.ProcessorStatus.NONE;
         } else {
             long lastModified = statusFile.lastModified();
-            if (System.currentTimeMillis() - lastModified > PROCESSOR_STATUS_FILE_STALE) {
+            if (System.currentTimeMillis() - lastModified > leaseTimeout) {
                 return QueueProcessorCronJob.ProcessorStatus.DEAD;
             } else {
                 return QueueProcessorCronJob.ProcessorStatus.ALIVE;
@@ -806,22 +2307,21 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
     /**
      * We're done, delete status file.
      */
-    private synchronized void deleteProcessorStatus() {
-        File pStatusFile = new File(this.queuePath, PROCESSOR_STATUS_FILE);
+    private synchronized void deleteProcessorStatus(File pStatusFile) {
         pStatusFile.delete();
     }
 
     /**
      * Update status file.
      *
+     * @param pStatusFile
      * @param jobName
      * @param started
      * @param totalTasks
      * @param completedTasks
      * @param currentTaskStartedAt
      */
-    private synchronized void writeProcessorStatus(String jobName, Task task, DateTime started, int totalTasks, int completedTasks) {
-        File pStatusFile = new File(this.queuePath, PROCESSOR_STATUS_FILE);
+    private synchronized void writeProcessorStatus(File pStatusFile, String jobName, Task task, DateTime started, int totalTasks, int completedTasks) {
         String status = String.format("<processor id=\"%s\" job-name=\"%s\" started=\"%s\" tasks=\"%d\" tasks-completed=\"%d\" completed-task-uri=\"%s\"/>",
                 Thread.currentThread().getId(),
                 jobName,
@@ -879,32 +2379,71 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
      * @return
      */
     protected File getOldestJobFile(File dir) {
-        if (dir == null || !dir.isDirectory()) {
-            return null;
+        File[] files = getJobFilesOldestFirst(dir, 1);
+        return files.length == 0 ? null : files[0];
+    }
+
+    /**
+     * Count the jobs (files named "job-*.xml") in dir.
+     *
+     * @param dir
+     * @return The number of job files.
+     */
+    protected int countJobFiles(File dir) {
+        if (dir == null) {
+            return 0;
+        }
+        JobDirectoryWatcher w = watcher;
+        int watched = null == w ? -1 : w.countJobFiles(dir);
+        if (watched >= 0) {
+            return watched;
         }
         File[] files = dir.listFiles((FileFilter) new WildcardFileFilter("job-*.xml"));
-        if (files.length == 0) {
-            return null;
+        return null == files ? 0 : files.length;
+    }
+
+    /**
+     * Get the oldest jobs (files named "job-*.xml") in dir, oldest first.
+     *
+     * @param dir
+     * @param max The maximum number of jobs to return.
+     * @return The job files, possibly none.
+     */
+    protected File[] getJobFilesOldestFirst(File dir, int max) {
+        if (dir == null) {
+            return new File[0];
+        }
+        JobDirectoryWatcher w = watcher;
+        File[] watched = null == w ? null : w.getJobFilesOldestFirst(dir, max);
+        if (null != watched) {
+            return watched;
+        }
+        if (!dir.isDirectory()) {
+            return new File[0];
         }
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File file1, File file2) {
-                return Long.valueOf(file1.lastModified()).compareTo(file2.lastModified());
+        File[] files = dir.listFiles((FileFilter) new WildcardFileFilter("job-*.xml"));
+        if (null == files) {
+            return new File[0];
+        }
+        // Get each lastModified once, instead of twice for every comparison.
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(lastModified[i1], lastModified[i2]);
             }
         });
-        return files[0];
+        File[] sorted = new File[Math.min(max, files.length)];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = files[order[i]];
+        }
+        return sorted;
     }
-    
-    
-    private void writeOutputStream(OutputStream os, String msg) {            
-            synchronized (os) {
-                try {
-                    os.write(msg.getBytes());
-                } catch (IOException ex) {
-                    Logger.getLogger(QueueProcessorCronJob.class.getName()).log(Level.SEVERE, null, ex);
-              }
-            }
 
-    }
 
     /**
      * Classes used for loading the job-*.xml config files into.
@@ -920,7 +2459,10 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
          */
         public String id;
         public String uri;
-        public NodeList content;
+        // The serialized content document in UTF-8, no bytes if the task has no content.
+        public byte[] content;
+        // The ids in the depends-on attribute, null if the task does not depend on other tasks.
+        public String[] dependsOn;
 
         public Task() {
         }
@@ -935,7 +2477,16 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
         public String description;
         public Date created;
         public Integer maxConcurrent;
+        // max-concurrent="auto", maxConcurrent is not used.
+        public transient boolean adaptiveConcurrency;
         public Long taskTimeout;
+        // speculative="true", tasks may be run twice.
+        public Boolean speculative;
+        // cache="true", results may come from the result cache.
+        public Boolean cache;
+        public String priority;
+        // The host-limits element of the job, or null.
+        transient HostLimits hostLimits;
         public ArrayList<Task> tasks;
 
         public JobConfig() {
@@ -970,6 +2521,7 @@ public class QueueProcessorCronJob extends ServiceableCronJob implements Configu
         xstream.useAttributeFor(JobConfig.class, "created");
         xstream.useAttributeFor(JobConfig.class, "maxConcurrent");
         xstream.aliasField("max-concurrent", JobConfig.class, "maxConcurrent");
+        xstream.useAttributeFor(JobConfig.class, "priority");
 
         xstream.alias("task", Task.class);
         xstream.useAttributeFor(Task.class, "id");
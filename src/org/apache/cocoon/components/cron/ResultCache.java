@@ -0,0 +1,232 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.avalon.framework.logger.Logger;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.Task;
+
+/**
+ * The results of tasks that ran before, on disk, so a task with the same uri
+ * and content does not have to run again.
+ * <p>
+ * A result is stored in a file in the cache directory, whose name is the
+ * SHA-256 hash of the uri and the content of the task. The file starts with
+ * the time (ms) the result was added, followed by the result in UTF-8. A
+ * result that is older than the ttl is removed when it is asked for. When the
+ * results take more than the maximum size, the least recently used ones are
+ * removed. The last use is the modification time of the file, so it survives
+ * a restart.
+ * <p>
+ * Only use this for tasks whose pipelines always produce the same result for
+ * the same uri and content. This class is thread-safe.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class ResultCache {
+
+    private static final String EXTENSION = ".result";
+    private static final int HEADER_SIZE = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final long ttl;
+    private final long maxSize;
+    private final Logger logger;
+    // The size of every result, least recently used first.
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Open the cache, and read the sizes of the results that are in it.
+     *
+     * @param dir The directory of the cache, which is created if necessary.
+     * @param ttl How long (ms) a result is kept.
+     * @param maxSize The maximum number of bytes of all results.
+     * @param logger For logging files that could not be written or removed.
+     */
+    public ResultCache(File dir, long ttl, long maxSize, Logger logger) throws IOException {
+        this.dir = dir;
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.logger = logger;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (null != files) {
+            final Map<File, Long> used = new LinkedHashMap<File, Long>();
+            for (File file : files) {
+                if (file.getName().endsWith(EXTENSION)) {
+                    used.put(file, file.lastModified());
+                } else {
+                    // Left behind by a crash while writing.
+                    file.delete();
+                }
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(orZero(used.get(a)), orZero(used.get(b)));
+                }
+            });
+            for (File file : files) {
+                if (used.containsKey(file)) {
+                    String name = file.getName();
+                    sizes.put(name.substring(0, name.length() - EXTENSION.length()), file.length());
+                    size += file.length();
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @param task A task.
+     * @return The key of the result of the task, the hash of its uri and
+     * content.
+     */
+    public static String key(Task task) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] uri = task.uri.getBytes(StandardCharsets.UTF_8);
+        // The length keeps the uri from running into the content.
+        digest.update(ByteBuffer.allocate(4).putInt(uri.length).array());
+        digest.update(uri);
+        digest.update(task.content);
+        byte[] hash = digest.digest();
+        char[] key = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            key[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            key[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(key);
+    }
+
+    /**
+     * @param key The key of a result, see {@link #key(Task)}.
+     * @return The result, or null if it is not in the cache or has expired.
+     */
+    public String get(String key) {
+        synchronized (this) {
+            if (null == sizes.get(key)) {
+                return null;
+            }
+        }
+        File file = file(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException ex) {
+            forget(key);
+            return null;
+        } catch (IOException ex) {
+            logger.warn("Could not read cached result " + file, ex);
+            return null;
+        }
+        if (bytes.length < HEADER_SIZE || ByteBuffer.wrap(bytes).getLong() + ttl < System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return new String(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add a result to the cache, and remove the least recently used results
+     * if the cache has become too large.
+     *
+     * @param key The key of the result, see {@link #key(Task)}.
+     * @param result The result.
+     */
+    public void put(String key, String result) {
+        File file = file(key);
+        File temp = new File(dir, String.format(".%s.%s.part", key, Thread.currentThread().getId()));
+        long length;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_SIZE + 2 * result.length());
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeLong(System.currentTimeMillis());
+            out.write(result.getBytes(StandardCharsets.UTF_8));
+            length = buffer.size();
+            if (length > maxSize) {
+                return;
+            }
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                buffer.writeTo(fos);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.warn("Could not write cached result " + file, ex);
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            Long old = sizes.put(key, length);
+            size += length - (null == old ? 0 : old);
+        }
+        evict();
+    }
+
+    private void remove(String key) {
+        forget(key);
+        file(key).delete();
+    }
+
+    private synchronized void forget(String key) {
+        Long old = sizes.remove(key);
+        if (null != old) {
+            size -= old;
+        }
+    }
+
+    /**
+     * Remove the least recently used results until the cache is small enough.
+     */
+    private void evict() {
+        while (true) {
+            String key;
+            synchronized (this) {
+                if (size <= maxSize || sizes.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Long>> eldest = sizes.entrySet().iterator();
+                Map.Entry<String, Long> entry = eldest.next();
+                key = entry.getKey();
+                size -= entry.getValue();
+                eldest.remove();
+            }
+            File file = file(key);
+            if (!file.delete() && file.exists()) {
+                logger.warn("Could not remove cached result " + file);
+            }
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key + EXTENSION);
+    }
+
+    private static long orZero(Long value) {
+        return null == value ? 0 : value;
+    }
+
+}
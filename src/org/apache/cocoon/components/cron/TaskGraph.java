@@ -0,0 +1,192 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.Task;
+
+/**
+ * Keeps the tasks of a job that depend on other tasks until those have
+ * finished.
+ * <p>
+ * A task with a depends-on attribute is held when it is read, and becomes
+ * ready as soon as the last of the tasks it depends on has finished. When one
+ * of those failed, the task does not run at all, it is skipped and counts as
+ * failed itself, so the tasks that depend on it are skipped as well.
+ * <p>
+ * Only the outcome of the tasks that other tasks depend on is remembered,
+ * these are collected before the job starts, see
+ * {@link JobFileReader#countTasks(java.io.File, Set)}. The tasks that are held
+ * are kept in memory, so it is best to list tasks after the tasks they depend
+ * on. This class is used by the thread that runs the job only.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class TaskGraph {
+
+    // The ids that tasks depend on.
+    private final Set<String> needed;
+    // Whether the tasks that are needed succeeded, by id, for the ones that have finished.
+    private final Map<String, Boolean> outcomes = new HashMap<String, Boolean>();
+    // The held tasks, by the id of a task they wait for.
+    private final Map<String, List<Waiting>> waiters = new HashMap<String, List<Waiting>>();
+    // The held tasks, in the order in which they were read.
+    private final Set<Waiting> held = new LinkedHashSet<Waiting>();
+    private final ArrayDeque<Waiting> ready = new ArrayDeque<Waiting>();
+    private final ArrayDeque<Waiting> skipped = new ArrayDeque<Waiting>();
+
+    /**
+     * @param needed The ids of the tasks that other tasks depend on.
+     */
+    public TaskGraph(Set<String> needed) {
+        this.needed = needed;
+    }
+
+    /**
+     * Offer a task that was just read.
+     *
+     * @param task The task.
+     * @param sequenceNumber The sequence number of the task in the job.
+     * @return true if the task can run now, false if it is held until its
+     * dependencies have finished, or skipped.
+     */
+    public boolean offer(Task task, int sequenceNumber) {
+        if (null == task.dependsOn) {
+            return true;
+        }
+        Waiting waiting = new Waiting(task, sequenceNumber);
+        for (String id : task.dependsOn) {
+            Boolean outcome = outcomes.get(id);
+            if (null == outcome) {
+                List<Waiting> list = waiters.get(id);
+                if (null == list) {
+                    list = new ArrayList<Waiting>(1);
+                    waiters.put(id, list);
+                }
+                list.add(waiting);
+                waiting.remaining++;
+            } else if (!outcome) {
+                waiting.failedDependency = id;
+            }
+        }
+        if (0 == waiting.remaining) {
+            if (null != waiting.failedDependency) {
+                skipped.add(waiting);
+                return false;
+            }
+            return true;
+        }
+        held.add(waiting);
+        return false;
+    }
+
+    /**
+     * A task has finished, or was skipped. The tasks that waited for it may
+     * become ready or be skipped.
+     *
+     * @param id The id of the task.
+     * @param succeeded false if the task failed, timed out or was skipped.
+     */
+    public void finished(String id, boolean succeeded) {
+        if (!needed.contains(id)) {
+            return;
+        }
+        // A task id that occurs twice fails if either task failed.
+        Boolean previous = outcomes.put(id, succeeded);
+        if (Boolean.FALSE.equals(previous)) {
+            outcomes.put(id, false);
+        }
+        List<Waiting> list = waiters.remove(id);
+        if (null == list) {
+            return;
+        }
+        for (Waiting waiting : list) {
+            if (!succeeded && null == waiting.failedDependency) {
+                waiting.failedDependency = id;
+            }
+            if (0 == --waiting.remaining) {
+                held.remove(waiting);
+                (null == waiting.failedDependency ? ready : skipped).add(waiting);
+            }
+        }
+    }
+
+    /**
+     * @return A task whose dependencies have all succeeded, which must be run,
+     * or null.
+     */
+    public Waiting pollReady() {
+        return ready.poll();
+    }
+
+    /**
+     * @return A task that must not run because a task it depends on failed,
+     * or null. Its result must be written, and {@link #finished} called.
+     */
+    public Waiting pollSkipped() {
+        return skipped.poll();
+    }
+
+    /**
+     * @return true if there are skipped tasks whose result has not been
+     * written.
+     */
+    public boolean hasSkipped() {
+        return !skipped.isEmpty();
+    }
+
+    /**
+     * @return true if there are ready tasks.
+     */
+    public boolean hasReady() {
+        return !ready.isEmpty();
+    }
+
+    /**
+     * @return The number of tasks that wait for other tasks.
+     */
+    public int heldCount() {
+        return held.size();
+    }
+
+    /**
+     * Skip the tasks that are still held when all tasks have been read and
+     * no task is running: they depend on tasks that do not exist, or on each
+     * other.
+     *
+     * @return The number of tasks that were skipped.
+     */
+    public int skipUnresolved() {
+        int count = held.size();
+        for (Waiting waiting : held) {
+            waiting.remaining = 0;
+            skipped.add(waiting);
+        }
+        held.clear();
+        waiters.clear();
+        return count;
+    }
+
+    /**
+     * A task that waits for other tasks.
+     */
+    static class Waiting {
+
+        final Task task;
+        final int sequenceNumber;
+        // The number of tasks that have not finished yet.
+        int remaining = 0;
+        // The id of a task that failed, null if the task was not resolved at all.
+        String failedDependency = null;
+
+        Waiting(Task task, int sequenceNumber) {
+            this.task = task;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Journal of the tasks of a job whose results have been written to
+ * task-results.xml.
+ * <p>
+ * Every line contains the sequence number of a task and the length of
+ * task-results.xml after its result was written, followed by "failed" if the
+ * task failed, so the tasks that depend on it are skipped again when the job
+ * is resumed. Lines are only appended, and
+ * are forced to disk in batches by {@link #sync()}, after task-results.xml
+ * itself. When a job is processed again after a crash, the journal tells
+ * which tasks are done and where task-results.xml must be cut off, because
+ * anything after the last complete entry may be a partially written result.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class TaskJournal implements Closeable {
+
+    private static final String FAILED = "failed";
+
+    // The tasks that were in the journal when it was opened.
+    private final BitSet completed = new BitSet();
+    // The tasks among them that failed.
+    private final BitSet failed = new BitSet();
+    private final FileOutputStream out;
+    private final StringBuilder pending = new StringBuilder();
+    private long offset = 0;
+
+    /**
+     * Open a journal, reading the entries that are already in it.
+     *
+     * @param file The journal file, which does not have to exist.
+     * @param resultsLength The current length of the results file. Entries
+     * beyond this length were written to the journal before the results
+     * reached the disk, they are ignored.
+     */
+    public TaskJournal(File file, long resultsLength) throws IOException {
+        Entries entries = read(file, resultsLength);
+        for (int i = 0; i < entries.count; i++) {
+            completed.set(entries.seqs[i]);
+        }
+        failed.or(entries.failed);
+        if (entries.count > 0) {
+            offset = entries.offsets[entries.count - 1];
+        }
+        this.out = new FileOutputStream(file, true);
+        // Drop the entries that were not valid, new entries come after the valid ones.
+        this.out.getChannel().truncate(entries.length);
+    }
+
+    /**
+     * Read the entries of a journal, without changing it.
+     *
+     * @param file The journal file, which does not have to exist.
+     * @param resultsLength The current length of the results file.
+     * @return The length of the results file after each of the results, in
+     * the order in which they were written.
+     */
+    public static long[] readOffsets(File file, long resultsLength) throws IOException {
+        Entries entries = read(file, resultsLength);
+        return Arrays.copyOf(entries.offsets, entries.count);
+    }
+
+    /**
+     * Read the valid entries at the start of a journal. An entry is valid if
+     * its line is complete, including the newline, and its offset is larger
+     * than that of the entry before it and not beyond the end of the results
+     * file. Reading stops at the first entry that is not valid, because it
+     * was partially written when the job was interrupted.
+     */
+    private static Entries read(File file, long resultsLength) throws IOException {
+        Entries entries = new Entries();
+        if (!file.exists()) {
+            return entries;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            StringBuilder line = new StringBuilder();
+            long position = 0;
+            long previous = 0;
+            int b;
+            while (-1 != (b = in.read())) {
+                position++;
+                if ('\n' != b) {
+                    line.append((char) b);
+                    continue;
+                }
+                long[] entry = parse(line.toString(), previous, resultsLength);
+                if (null == entry) {
+                    break;
+                }
+                entries.add((int) entry[0], entry[1], entry[2] != 0);
+                entries.length = position;
+                previous = entry[1];
+                line.setLength(0);
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return The sequence number, offset and failed flag (1 if the task
+     * failed) of a line of the journal, or null if the line is garbled, its
+     * offset is not after the previous one, or it refers to results that did
+     * not reach the disk.
+     */
+    private static long[] parse(String line, long previous, long resultsLength) {
+        String[] fields = line.split(" ");
+        long end;
+        int seq;
+        boolean taskFailed;
+        try {
+            seq = Integer.parseInt(fields[0]);
+            end = Long.parseLong(fields[1]);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        if (fields.length == 2) {
+            taskFailed = false;
+        } else if (fields.length == 3 && FAILED.equals(fields[2])) {
+            taskFailed = true;
+        } else {
+            return null;
+        }
+        if (seq < 0 || end <= previous || end > resultsLength) {
+            return null;
+        }
+        return new long[] {seq, end, taskFailed ? 1 : 0};
+    }
+
+    /**
+     * @param seq The sequence number of a task.
+     * @return true if the result of the task was written before the journal
+     * was opened.
+     */
+    public boolean isCompleted(int seq) {
+        return completed.get(seq);
+    }
+
+    /**
+     * @param seq The sequence number of a task.
+     * @return true if the task failed, according to an entry that was in the
+     * journal when it was opened.
+     */
+    public boolean isFailed(int seq) {
+        return failed.get(seq);
+    }
+
+    /**
+     * @return The number of entries in the journal when it was opened.
+     */
+    public int size() {
+        return completed.cardinality();
+    }
+
+    /**
+     * @return The length of the results file up to the last entry.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Add an entry. It is written to disk by the next {@link #sync()}.
+     *
+     * @param seq The sequence number of the task.
+     * @param end The length of the results file after the result of the task.
+     * @param taskFailed true if the task failed.
+     */
+    public void record(int seq, long end, boolean taskFailed) {
+        offset = end;
+        pending.append(seq).append(' ').append(end);
+        if (taskFailed) {
+            pending.append(' ').append(FAILED);
+        }
+        pending.append('\n');
+    }
+
+    /**
+     * Write the new entries and force them to disk.
+     */
+    public void sync() throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+        out.write(pending.toString().getBytes(StandardCharsets.US_ASCII));
+        pending.setLength(0);
+        out.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The valid entries of a journal, and the length of the journal up to
+     * the end of the last one.
+     */
+    private static final class Entries {
+        int[] seqs = new int[64];
+        long[] offsets = new long[64];
+        BitSet failed = new BitSet();
+        int count = 0;
+        long length = 0;
+
+        void add(int seq, long end, boolean taskFailed) {
+            if (count == seqs.length) {
+                seqs = Arrays.copyOf(seqs, 2 * count);
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            seqs[count] = seq;
+            offsets[count++] = end;
+            if (taskFailed) {
+                failed.set(seq);
+            }
+        }
+    }
+
+}
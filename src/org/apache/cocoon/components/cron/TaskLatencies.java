@@ -0,0 +1,54 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recently finished tasks of a job, used to
+ * recognize tasks that take much longer than usual.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class TaskLatencies {
+
+    private final long[] recent;
+    private int count = 0;
+    private int next = 0;
+
+    /**
+     * @param capacity The number of latencies that is kept.
+     */
+    public TaskLatencies(int capacity) {
+        this.recent = new long[capacity];
+    }
+
+    /**
+     * @param latency How long a task took (ms).
+     */
+    public void add(long latency) {
+        recent[next] = latency;
+        next = (next + 1) % recent.length;
+        if (count < recent.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @return The number of latencies that is kept.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The median of the latencies, or -1 if there are none.
+     */
+    public long median() {
+        if (0 == count) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(recent, count);
+        Arrays.sort(sorted);
+        return sorted[count / 2];
+    }
+
+}
@@ -0,0 +1,298 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * An index of the task results in the zip file of a finished job, so the
+ * result of one task can be read without unpacking the zip file or parsing
+ * all of task-results.xml.
+ * <p>
+ * The index is written next to the zip file, as "{job-name}.index". It
+ * contains the {@link JobArchive.AccessPoints} of task-results.xml, followed
+ * by a hash table from task id to the offset and length of the result of the
+ * task in task-results.xml. Looking up a task reads one or two slots of the
+ * hash table and one record, and the result is read by inflating from the
+ * nearest access point before it, which is at most
+ * {@link JobArchive#ACCESS_POINT_INTERVAL} bytes away.
+ * <p>
+ * The index is built from the task journal, which knows where every result
+ * ends, and the start tags of the results, which contain the task ids.
+ * Results without a task element, such as the errors of failed pipelines, are
+ * not in the index.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class TaskResultsIndex {
+
+    public static final String INDEX_EXTENSION = "index";
+
+    private static final int MAGIC = 0x51494458; // "QIDX"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Start tags longer than this are not searched for an id.
+    private static final int MAX_START_TAG = 64 * 1024;
+
+    private static final Pattern TASK_ID = Pattern.compile("^\\s*<task\\s(?:.*\\s)?id=\"([^\"]*)\"", Pattern.DOTALL);
+
+    private TaskResultsIndex() {
+    }
+
+    /**
+     * Write the index of a job.
+     *
+     * @param indexFile The file to write.
+     * @param points Where task-results.xml is in the zip file of the job.
+     * @param resultsFile The task-results.xml file.
+     * @param journalFile The journal of the results file.
+     * @return The number of tasks in the index.
+     */
+    static int write(File indexFile, JobArchive.AccessPoints points, File resultsFile, File journalFile) throws IOException {
+        long[] ends = TaskJournal.readOffsets(journalFile, resultsFile.length());
+        List<byte[]> ids = new ArrayList<byte[]>();
+        List<long[]> ranges = new ArrayList<long[]>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(resultsFile), BUFFER_SIZE)) {
+            long position = 0;
+            ByteArrayOutputStream tag = new ByteArrayOutputStream();
+            for (long end : ends) {
+                long start = position;
+                tag.reset();
+                int c;
+                while (position < end && tag.size() < MAX_START_TAG && (c = in.read()) >= 0) {
+                    position++;
+                    tag.write(c);
+                    if ('>' == c) {
+                        break;
+                    }
+                }
+                Matcher matcher = TASK_ID.matcher(new String(tag.toByteArray(), StandardCharsets.UTF_8));
+                if (matcher.find()) {
+                    ids.add(StringEscapeUtils.unescapeXml(matcher.group(1)).getBytes(StandardCharsets.UTF_8));
+                    ranges.add(new long[] {start, end - start});
+                }
+                while (position < end) {
+                    long skipped = in.skip(end - position);
+                    if (skipped <= 0) {
+                        throw new IOException("Task results file " + resultsFile + " is shorter than its journal");
+                    }
+                    position += skipped;
+                }
+            }
+        }
+
+        List<long[]> accessPoints = points.getPoints();
+        int slotCount = Integer.highestOneBit(Math.max(1, 2 * ids.size() - 1)) << 1;
+        long[] slots = new long[slotCount];
+        Arrays.fill(slots, -1);
+        long recordsStart = 4 + 4 + 1 + 4 + 16L * accessPoints.size() + 4 + 8L * slotCount;
+        long recordPosition = recordsStart;
+        for (byte[] id : ids) {
+            int slot = hash(id) & (slotCount - 1);
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = recordPosition;
+            recordPosition += 4 + id.length + 8 + 8;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(points.isStored());
+            out.writeInt(accessPoints.size());
+            for (long[] point : accessPoints) {
+                out.writeLong(point[0]);
+                out.writeLong(point[1]);
+            }
+            out.writeInt(slotCount);
+            for (long slot : slots) {
+                out.writeLong(slot);
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                byte[] id = ids.get(i);
+                out.writeInt(id.length);
+                out.write(id);
+                out.writeLong(ranges.get(i)[0]);
+                out.writeLong(ranges.get(i)[1]);
+            }
+        }
+        return ids.size();
+    }
+
+    /**
+     * Read the result of a task from the zip file of a finished job.
+     *
+     * @param indexFile The index of the job.
+     * @param zipFile The zip file of the job.
+     * @param taskId The id of the task.
+     * @return The result of the task, the task element in UTF-8, or null if
+     * the task is not in the index. The caller must close it.
+     */
+    public static InputStream open(File indexFile, File zipFile, String taskId) throws IOException {
+        byte[] id = taskId.getBytes(StandardCharsets.UTF_8);
+        boolean stored;
+        long offset;
+        long length;
+        long[] point;
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+            if (index.readInt() != MAGIC || index.readInt() != VERSION) {
+                throw new IOException(indexFile + " is not a task results index");
+            }
+            stored = index.readBoolean();
+            int pointCount = index.readInt();
+            long pointsStart = index.getFilePointer();
+            index.seek(pointsStart + 16L * pointCount);
+            int slotCount = index.readInt();
+            long slotsStart = index.getFilePointer();
+            int slot = hash(id) & (slotCount - 1);
+            while (true) {
+                index.seek(slotsStart + 8L * slot);
+                long record = index.readLong();
+                if (record < 0) {
+                    return null;
+                }
+                index.seek(record);
+                byte[] recordId = new byte[index.readInt()];
+                index.readFully(recordId);
+                if (Arrays.equals(id, recordId)) {
+                    offset = index.readLong();
+                    length = index.readLong();
+                    break;
+                }
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            point = findAccessPoint(index, pointsStart, pointCount, offset);
+        }
+
+        FileInputStream zip = new FileInputStream(zipFile);
+        try {
+            InputStream in;
+            if (stored) {
+                zip.getChannel().position(point[1] + offset);
+                in = new BufferedInputStream(zip, BUFFER_SIZE);
+            } else {
+                zip.getChannel().position(point[1]);
+                in = new InflaterInputStream(new BufferedInputStream(zip, BUFFER_SIZE), new Inflater(true), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end();
+                        }
+                    }
+                };
+                long skip = offset - point[0];
+                while (skip > 0) {
+                    long skipped = in.skip(skip);
+                    if (skipped <= 0) {
+                        in.close();
+                        throw new IOException("Task results in " + zipFile + " are shorter than their index");
+                    }
+                    skip -= skipped;
+                }
+            }
+            return new BoundedInputStream(in, length);
+        } catch (IOException ex) {
+            zip.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Binary search for the last access point at or before an offset.
+     */
+    private static long[] findAccessPoint(RandomAccessFile index, long pointsStart, int pointCount, long offset) throws IOException {
+        int low = 0;
+        int high = pointCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            index.seek(pointsStart + 16L * middle);
+            if (index.readLong() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        index.seek(pointsStart + 16L * low);
+        return new long[] {index.readLong(), index.readLong()};
+    }
+
+    private static int hash(byte[] id) {
+        int h = Arrays.hashCode(id);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Reads the first bytes of a stream.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = in.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+package org.apache.cocoon.components.cron;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.avalon.framework.logger.Logger;
+
+/**
+ * Writes task results to the task-results.xml file of a job.
+ * <p>
+ * Task threads hand their serialized results to {@link #write(String...)},
+ * which puts them in a bounded lock-free queue. A single writer thread takes
+ * the results from the queue and writes them through a large buffer, so task
+ * threads never wait for file I/O. They only wait when the queue is full,
+ * which means that the disk can not keep up with the tasks.
+ * <p>
+ * The parts passed to one call of {@link #write(String...)} are always written
+ * together, results of different tasks are never interleaved.
+ * <p>
+ * Results that are written with a sequence number are recorded in a
+ * {@link TaskJournal}. When the writer is opened on the results file of a job
+ * that was interrupted by a crash, it keeps the results that are in the
+ * journal and appends to them.
+ * <p>
+ * When the job has a {@link JobArchive}, everything that is written is also
+ * added to it, so the results do not have to be compressed after the job has
+ * finished. If the archive can not be written, the results file is still
+ * written and the archive is abandoned.
+ * <p>
+ * The results of a job of an in-memory queue are only written to the
+ * archive. There is no results file and no journal, such a job is run again
+ * from the start after a crash.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class TaskResultsWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Force the results to disk at least this often (number of results).
+    private static final int SYNC_BATCH = 1000;
+
+    private static final Result END = new Result(0, false, new String[0]);
+
+    private final Queue<Result> queue = new ConcurrentLinkedQueue<Result>();
+    private final Semaphore capacity;
+    // The results file, its buffer and its journal, null when only the archive is written.
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private final TaskJournal journal;
+    private final QueueMetrics metrics;
+    // Only used by the writer thread, and by close() after the writer thread has stopped.
+    private JobArchive archive;
+    private long offset;
+    private int unsynced = 0;
+    private final Thread writerThread;
+    private final Logger logger;
+    private volatile IOException failure;
+    private volatile boolean closed = false;
+
+    /**
+     * Open the results file and start the writer thread. The results file is
+     * cut off after the last result in the journal, which is empty for a new
+     * job.
+     *
+     * @param file The file to write to.
+     * @param journalFile The journal of the results file.
+     * @param capacity The maximum number of results waiting to be written.
+     * @param metrics Counts the bytes that are written.
+     * @param archive The archive the results are added to, or null.
+     * @param logger For logging write errors.
+     */
+    public TaskResultsWriter(File file, File journalFile, int capacity, QueueMetrics metrics, JobArchive archive, Logger logger) throws IOException {
+        this.capacity = new Semaphore(Math.max(1, capacity));
+        this.metrics = metrics;
+        this.archive = archive;
+        this.logger = logger;
+        this.journal = new TaskJournal(journalFile, file.length());
+        this.offset = journal.offset();
+        this.file = new FileOutputStream(file, true);
+        try {
+            this.file.getChannel().truncate(offset);
+        } catch (IOException ex) {
+            this.file.close();
+            journal.close();
+            throw ex;
+        }
+        this.out = new BufferedOutputStream(this.file, BUFFER_SIZE);
+        if (null != archive) {
+            startArchive(file);
+        }
+        this.writerThread = startWriter(file.getAbsoluteFile().getParentFile().getName());
+    }
+
+    /**
+     * Start a writer that only adds the results to an archive.
+     *
+     * @param name The name of the results file in the archive.
+     * @param capacity The maximum number of results waiting to be written.
+     * @param metrics Counts the bytes that are written.
+     * @param archive The archive the results are added to.
+     * @param logger For logging write errors.
+     */
+    public TaskResultsWriter(String name, int capacity, QueueMetrics metrics, JobArchive archive, Logger logger) throws IOException {
+        this.capacity = new Semaphore(Math.max(1, capacity));
+        this.metrics = metrics;
+        this.archive = archive;
+        this.logger = logger;
+        this.journal = null;
+        this.offset = 0;
+        this.file = null;
+        this.out = null;
+        archive.putEntry(name);
+        this.writerThread = startWriter(archive.getFile().getName());
+    }
+
+    private Thread startWriter(String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "task-results-writer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @param seq The sequence number of a task.
+     * @return true if the result of the task was already written before a
+     * crash.
+     */
+    public boolean isCompleted(int seq) {
+        return null != journal && journal.isCompleted(seq);
+    }
+
+    /**
+     * @param seq The sequence number of a task.
+     * @return true if the task failed before a crash, so the tasks that depend
+     * on it must be skipped.
+     */
+    public boolean isFailed(int seq) {
+        return null != journal && journal.isFailed(seq);
+    }
+
+    /**
+     * @return The number of results that were already written before a crash.
+     */
+    public int completedCount() {
+        return null == journal ? 0 : journal.size();
+    }
+
+    /**
+     * Queue parts of the results file to be written, in order, without
+     * recording them in the journal.
+     *
+     * @param parts Strings that are written one after the other.
+     */
+    public void write(String... parts) {
+        write(-1, false, parts);
+    }
+
+    /**
+     * Queue parts of the results file to be written, in order.
+     * Results that arrive after the writer has been closed (from tasks that
+     * were still running when the job was stopped) are discarded.
+     *
+     * @param seq The sequence number that is recorded in the journal when the
+     * parts have been written, or -1.
+     * @param failed true if the task failed, this is recorded in the journal
+     * as well.
+     * @param parts Strings that are written one after the other.
+     */
+    public void write(int seq, boolean failed, String... parts) {
+        capacity.acquireUninterruptibly();
+        if (closed) {
+            logger.warn("Task results file is closed, discarding result.");
+            return;
+        }
+        queue.offer(new Result(seq, failed, parts));
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Write everything that is still queued, stop the writer thread and close
+     * the file.
+     *
+     * @throws IOException when writing any of the results failed.
+     */
+    @Override
+    public void close() throws IOException {
+        queue.offer(END);
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        // Let task threads that are waiting for capacity find out that we are closed.
+        capacity.release(Integer.MAX_VALUE / 2);
+        if (null != archive) {
+            try {
+                archive.closeEntry();
+            } catch (IOException ex) {
+                if (null == out) {
+                    throw ex;
+                }
+                abandonArchive(ex);
+            }
+        }
+        if (null != out) {
+            try {
+                out.close();
+            } finally {
+                journal.close();
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Body of the writer thread. Flushes the buffer and syncs the journal
+     * whenever the queue is empty, and parks until a task thread adds
+     * something.
+     */
+    private void drain() {
+        while (true) {
+            Result result = queue.poll();
+            if (null == result) {
+                flush();
+                LockSupport.park(this);
+                continue;
+            }
+            if (result == END) {
+                flush();
+                return;
+            }
+            if (null == failure) {
+                try {
+                    for (String part : result.parts) {
+                        byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                        if (null != out) {
+                            out.write(bytes);
+                        }
+                        archive(bytes, bytes.length);
+                        offset += bytes.length;
+                        metrics.bytesWritten(bytes.length);
+                    }
+                    if (result.seq >= 0 && null != journal) {
+                        journal.record(result.seq, offset, result.failed);
+                        if (++unsynced >= SYNC_BATCH) {
+                            flush();
+                        }
+                    }
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+            capacity.release();
+        }
+    }
+
+    /**
+     * Write the buffer to disk and then the journal, so the journal never
+     * refers to results that are not on disk.
+     */
+    private void flush() {
+        if (null == failure && null != out) {
+            try {
+                out.flush();
+                if (unsynced > 0) {
+                    file.getFD().sync();
+                    journal.sync();
+                    unsynced = 0;
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Start the entry of the results in the archive, with the results that
+     * were written before a crash.
+     */
+    private void startArchive(File file) {
+        try {
+            archive.putEntry(file.getName());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(file)) {
+                long remaining = offset;
+                int length;
+                while (remaining > 0 && (length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                    archive.write(buffer, 0, length);
+                    remaining -= length;
+                }
+            }
+        } catch (IOException ex) {
+            abandonArchive(ex);
+        }
+    }
+
+    private void archive(byte[] bytes, int length) throws IOException {
+        if (null != archive) {
+            try {
+                archive.write(bytes, 0, length);
+            } catch (IOException ex) {
+                if (null == out) {
+                    // The archive is all there is.
+                    throw ex;
+                }
+                abandonArchive(ex);
+            }
+        }
+    }
+
+    private void abandonArchive(IOException ex) {
+        logger.warn("Error writing the archive of the task results, it will be created when the job has finished.", ex);
+        archive.abandon();
+        archive = null;
+    }
+
+    private void fail(IOException ex) {
+        failure = ex;
+        logger.error("Error writing task results, further results are discarded.", ex);
+    }
+
+    /**
+     * The parts of one result, and its sequence number and outcome for the
+     * journal.
+     */
+    private static class Result {
+
+        final int seq;
+        final boolean failed;
+        final String[] parts;
+
+        Result(int seq, boolean failed, String[] parts) {
+            this.seq = seq;
+            this.failed = failed;
+            this.parts = parts;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.Task;
+
+/**
+ * Decides when the tasks of one job may start, according to the
+ * {@link HostLimits} of the component and of the job.
+ * <p>
+ * A task whose target is at its limit is deferred: it is kept here, and the
+ * job goes on with the tasks after it, so tasks for other targets do not wait
+ * for a slow or throttled host. At most capacity tasks are deferred, after
+ * that the job waits until one of them can start. Deferred tasks of one
+ * target start in the order in which they were read.
+ * <p>
+ * This class is used by the thread that runs the job only.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class TaskThrottle {
+
+    // How long to wait before trying again when the targets are busy with the tasks of other jobs.
+    private static final long BUSY_POLL_INTERVAL = 250;
+
+    private final HostLimits shared;
+    private final HostLimits own;
+    private final int capacity;
+    // The deferred tasks by target.
+    private final Map<String, ArrayDeque<Deferred>> deferred = new LinkedHashMap<String, ArrayDeque<Deferred>>();
+    private int deferredCount = 0;
+    // The number of started tasks by target, to release what is left of them when the job ends.
+    private final Map<String, Integer> started = new HashMap<String, Integer>();
+
+    /**
+     * @param shared The limits of the component, or null.
+     * @param own The limits of the job, or null.
+     * @param capacity The maximum number of deferred tasks.
+     */
+    public TaskThrottle(HostLimits shared, HostLimits own, int capacity) {
+        this.shared = shared;
+        this.own = own;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return true if a job with these limits needs a throttle at all.
+     */
+    public static boolean isNeeded(HostLimits shared, HostLimits own) {
+        return (null != shared && !shared.isEmpty()) || (null != own && !own.isEmpty());
+    }
+
+    /**
+     * Start a task that was just read, if the limits of its target allow it.
+     *
+     * @return true if the task may start, {@link #finished(Task)} must be
+     * called when it has finished. Otherwise it must be deferred, unless
+     * tasks of its target are already deferred, it could go before them.
+     */
+    public boolean tryStart(Task task) {
+        String target = HostLimits.target(task.uri);
+        return !deferred.containsKey(target) && acquire(target);
+    }
+
+    /**
+     * Keep a task until its target allows it to start.
+     *
+     * @param task The task.
+     * @param sequenceNumber The sequence number of the task in the job.
+     */
+    public void defer(Task task, int sequenceNumber) {
+        String target = HostLimits.target(task.uri);
+        ArrayDeque<Deferred> tasks = deferred.get(target);
+        if (null == tasks) {
+            tasks = new ArrayDeque<Deferred>();
+            deferred.put(target, tasks);
+        }
+        tasks.add(new Deferred(task, sequenceNumber));
+        deferredCount++;
+    }
+
+    /**
+     * Start the first deferred task whose target allows it.
+     *
+     * @return The task, which must be run, or null if none can start now.
+     */
+    public Deferred startDeferred() {
+        Iterator<Map.Entry<String, ArrayDeque<Deferred>>> targets = deferred.entrySet().iterator();
+        while (targets.hasNext()) {
+            Map.Entry<String, ArrayDeque<Deferred>> entry = targets.next();
+            if (acquire(entry.getKey())) {
+                Deferred next = entry.getValue().poll();
+                if (entry.getValue().isEmpty()) {
+                    targets.remove();
+                }
+                deferredCount--;
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if no tasks are deferred.
+     */
+    public boolean isEmpty() {
+        return 0 == deferredCount;
+    }
+
+    /**
+     * @return true if no more tasks can be deferred.
+     */
+    public boolean isFull() {
+        return deferredCount >= capacity;
+    }
+
+    /**
+     * @return How long (ms) to wait before a deferred task may be able to
+     * start, when no task of the job finishes before that.
+     */
+    public long waitTime() {
+        long wait = BUSY_POLL_INTERVAL;
+        for (String target : deferred.keySet()) {
+            wait = Math.min(wait, Math.max(waitTime(shared, target), waitTime(own, target)));
+        }
+        return Math.max(1L, wait);
+    }
+
+    /**
+     * @return true if the target of a task has a limit, so it should not be
+     * run more often than necessary.
+     */
+    public boolean isLimited(Task task) {
+        String target = HostLimits.target(task.uri);
+        return (null != shared && shared.isLimited(target)) || (null != own && own.isLimited(target));
+    }
+
+    /**
+     * A task that was started has finished.
+     */
+    public void finished(Task task) {
+        String target = HostLimits.target(task.uri);
+        Integer count = started.get(target);
+        if (null == count) {
+            return;
+        }
+        if (1 == count) {
+            started.remove(target);
+        } else {
+            started.put(target, count - 1);
+        }
+        release(shared, target);
+        release(own, target);
+    }
+
+    /**
+     * Release the shared limits of the tasks that have not finished, when the
+     * job ends without waiting for them.
+     */
+    public void releaseAll() {
+        for (Map.Entry<String, Integer> entry : started.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                release(shared, entry.getKey());
+            }
+        }
+        started.clear();
+    }
+
+    private boolean acquire(String target) {
+        if (null != own && !own.tryAcquire(target)) {
+            return false;
+        }
+        if (null != shared && !shared.tryAcquire(target)) {
+            if (null != own) {
+                own.refund(target);
+            }
+            return false;
+        }
+        Integer count = started.get(target);
+        started.put(target, null == count ? 1 : count + 1);
+        return true;
+    }
+
+    private static long waitTime(HostLimits limits, String target) {
+        if (null == limits) {
+            return 0;
+        }
+        long wait = limits.waitTime(target);
+        return HostLimits.BUSY == wait ? BUSY_POLL_INTERVAL : wait;
+    }
+
+    private static void release(HostLimits limits, String target) {
+        if (null != limits) {
+            limits.release(target);
+        }
+    }
+
+    /**
+     * A task that is waiting for its target.
+     */
+    static class Deferred {
+
+        final Task task;
+        final int sequenceNumber;
+
+        Deferred(Task task, int sequenceNumber) {
+            this.task = task;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+}
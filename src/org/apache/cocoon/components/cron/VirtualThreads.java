@@ -0,0 +1,37 @@
+package org.apache.cocoon.components.cron;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads, which exist since Java 21.
+ * <p>
+ * This is the Java 8 version of this class, which says that virtual threads
+ * are not available. The jar file is a multi-release jar, which contains a
+ * version for Java 21 and later in META-INF/versions/21, built from the
+ * src-java21 directory.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if virtual threads can be used.
+     */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor.
+     * @throws UnsupportedOperationException if virtual threads are not available.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+    }
+
+}
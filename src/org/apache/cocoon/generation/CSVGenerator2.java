@@ -16,14 +16,13 @@
  */
 package org.apache.cocoon.generation;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +31,7 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.environment.SourceResolver;
 import org.apache.excalibur.source.Source;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -66,7 +66,7 @@ import org.xml.sax.helpers.AttributesImpl;
  *   </li>
  *   <li>
  *     <b>buffer-size</b>: the size of the buffer used for reading the source
- *     CSV file (default: <i>4096 bytes</i>).
+ *     CSV file (default: <i>65536 characters</i>).
  *   </li>
  *
  *   <li>
@@ -127,7 +127,7 @@ public class CSVGenerator2 extends FileGenerator {
     /** <p>The default field separator character.</p> */
     private static final String DEFAULT_ESCAPE = "\"";
     /** <p>The default field separator character.</p> */
-    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
     private static final int UNLIMITED_MAXRECORDS = -1;
     /** <p>A string used for indenting.</p> */
     private static final char INDENT_STRING[] = "\n          ".toCharArray();
@@ -148,8 +148,10 @@ public class CSVGenerator2 extends FileGenerator {
     private int maxrecords;
     /** <p>A flag indicating whether the &lt;record&gt; tag was opened.</p> */
     private boolean openrecord = false;
-    /** <p>The character buffer for the current field.</p> */
-    private CharArrayWriter buffer = null;
+    /** <p>The reader of the current CSV, which also holds the current field.</p> */
+    private CSVReader csv = null;
+    /** <p>The buffer the CSV is read into, kept for the next request.</p> */
+    private char[] chars = null;
     /** <p>A map of all known columns or null if no headers are processed.</p> */
     private Map<Integer, String> columns = null;
     /** Output empty fields? */
@@ -179,7 +181,7 @@ public class CSVGenerator2 extends FileGenerator {
         separator = DEFAULT_SEPARATOR.charAt(0);
         escape = DEFAULT_ESCAPE.charAt(0);
         buffersize = DEFAULT_BUFFER_SIZE;
-        buffer = null;
+        csv = null;
         columns = null;
         recordnumber = 1;
         fieldnumber = 1;
@@ -206,7 +208,6 @@ public class CSVGenerator2 extends FileGenerator {
         escape = parameters.getParameter("escape", DEFAULT_ESCAPE).charAt(0);
         buffersize = parameters.getParameterAsInteger("buffer-size", DEFAULT_BUFFER_SIZE);
         maxrecords = parameters.getParameterAsInteger("max-records", UNLIMITED_MAXRECORDS);
-        buffer = new CharArrayWriter();
         columns = (header ? new HashMap<Integer, String>() : null);
         recordnumber = (header ? 0 : 1);
         fieldnumber = 1;
@@ -230,13 +231,19 @@ public class CSVGenerator2 extends FileGenerator {
 
     /**
      * <p>Generate XML data from a Comma Separated Value resource.</p>.
+     * <p>Runs of characters that are not special are scanned at once, and a
+     * field that is not interrupted by escape characters is sent straight
+     * from the buffer it was read into.</p>
      */
     @Override
     public void generate()
     throws IOException, SAXException, ProcessingException {
 
         /* Create a new Reader correctly decoding the source stream */
-        CSVReader csv = new CSVReader(inputSource, encoding, buffersize);
+        if (chars == null || chars.length != Math.max(1, buffersize)) {
+            chars = new char[Math.max(1, buffersize)];
+        }
+        csv = new CSVReader(inputSource, encoding, chars);
 
         try {
             /* Start the document */
@@ -246,61 +253,113 @@ public class CSVGenerator2 extends FileGenerator {
             indent(0);
             this.startElement("document");
 
-            /* Allocate buffer and status for parsing */
+            /* Allocate status for parsing */
+            final char escape = this.escape;
+            final char separator = this.separator;
+            final boolean skipComments = "#".equals(comments);
             boolean unescaped = true;
+            boolean linestart = true;
             int prev = -1;
-            int curr = -1;
 
-            /* Parse the file reading characters one-by-one */
-            curr = csv.read();
-            int charpos = 0;
-            while (curr >= 0 && (maxrecords == UNLIMITED_MAXRECORDS || recordnumber <= maxrecords)) {
-                if ("#".equals(comments) && charpos == 0 && curr == '#') {
+            /* Parse the file, a run of ordinary characters or a special character at a time */
+            while ((maxrecords == UNLIMITED_MAXRECORDS || recordnumber <= maxrecords)
+                   && (csv.position < csv.limit || csv.fill())) {
+                final int start = csv.position;
+                final int limit = csv.limit;
+                final char curr = chars[start];
+                if (skipComments && linestart && curr == '#') {
                     /* Process comment lines. */
+                    csv.position = start + 1;
                     /* Read characters until a line ending is encountered. */
-                    while ((curr = csv.read()) >= 0 && !((curr == '\r') || (curr == '\n'))) buffer.write(curr);
+                    while (csv.position < csv.limit || csv.fill()) {
+                        int i = csv.position;
+                        while (i < csv.limit && chars[i] != '\r' && chars[i] != '\n') i++;
+                        csv.appendToField(csv.position, i);
+                        csv.position = i;
+                        if (i < csv.limit) break;
+                    }
                     /* Read until the first character after line endings is encountered. */
-                    while ((curr = csv.read()) >= 0 && ((curr == '\r') || (curr == '\n')));
+                    int last = -1;
+                    while (csv.position < csv.limit || csv.fill()) {
+                        char c = chars[csv.position];
+                        if (c != '\r' && c != '\n') break;
+                        if (c == '\r' || last != '\r') csv.line ++;
+                        last = c;
+                        csv.position ++;
+                    }
                     /* Write the comment to the output. */
                     indent(4);
                     this.startElement("comment");
-                    char array[] = buffer.toCharArray();
-                    contentHandler.characters(array, 0, array.length);
+                    csv.fieldCharacters(contentHandler);
                     this.endElement("comment");
-                    buffer.reset();
+                    csv.resetField();
                     /* We are out of the comment line, re-enter the loop. */
                     continue;
+                }
+                /* Scan the characters that simply get added to the field */
+                int i = start;
+                if (unescaped) {
+                    while (i < limit) {
+                        char c = chars[i];
+                        if (c == escape || c == separator || c == '\r' || c == '\n') break;
+                        i++;
+                    }
                 } else {
-                    if (curr == escape) {
-                        /* Process any occurrence of the escape character */
-                        if ((unescaped) && (prev == escape)) {
-                            buffer.write(escape);
-                        }
-                        unescaped = ! unescaped;
-                    } else if ((unescaped) && (curr == separator)) {
-                        /* Process any occurrence of the field separator */
-                        dumpField();
-                    } else if ((unescaped) && ((curr == '\r') || (curr == '\n'))) {
-                        /* Process newline characters, ignore empty lines. */
-                        if (prev != '\r' && prev != '\n') {
-                          dumpField();
-                          dumpRecord();
-                          recordnumber ++;
-                        }
-                        charpos = -1;
-                    } else {
-                      /* Any other character simply gets added to the buffer */
-                      buffer.write(curr);
+                    while (i < limit) {
+                        char c = chars[i];
+                        if (c == escape || c == '\r' || c == '\n') break;
+                        i++;
+                    }
+                }
+                if (i > start) {
+                    csv.appendToField(start, i);
+                    csv.position = i;
+                    prev = chars[i - 1];
+                    linestart = false;
+                    continue;
+                }
+                /* Process one special character */
+                csv.position = start + 1;
+                if ((curr == '\r') || (curr == '\n' && prev != '\r')) {
+                    csv.line ++;
+                }
+                if (curr == escape) {
+                    /* Process any occurrence of the escape character */
+                    if ((unescaped) && (prev == escape)) {
+                        csv.appendToField(start, start + 1);
+                    }
+                    unescaped = ! unescaped;
+                } else if ((unescaped) && (curr == separator)) {
+                    /* Process any occurrence of the field separator */
+                    dumpField();
+                } else if ((unescaped) && ((curr == '\r') || (curr == '\n'))) {
+                    /* Process newline characters, ignore empty lines. */
+                    if (prev != '\r' && prev != '\n') {
+                      dumpField();
+                      dumpRecord();
+                      recordnumber ++;
                     }
-                    /* Read next character. */
                     prev = curr;
-                    curr = csv.read();
-                    ++charpos;
+                    linestart = true;
+                    continue;
+                } else {
+                    /* An escaped separator or newline gets added to the field */
+                    csv.appendToField(start, start + 1);
+                }
+                prev = curr;
+                linestart = false;
+            }
+
+            /* The character after the last record has been read ahead, count it if it ends a line */
+            if (csv.position < csv.limit || csv.fill()) {
+                char next = chars[csv.position];
+                if ((next == '\r') || (next == '\n' && prev != '\r')) {
+                    csv.line ++;
                 }
             }
 
             /* Terminate any hanging open record element */
-            if (buffer.size() > 0) {
+            if (csv.fieldLength() > 0) {
               dumpField();
               dumpRecord();
             }
@@ -319,7 +378,7 @@ public class CSVGenerator2 extends FileGenerator {
 
     private void dumpField()
     throws SAXException {
-        if (buffer.size() < 1 && !emptyFields) {
+        if (csv.fieldLength() < 1 && !emptyFields) {
             fieldnumber ++;
             return;
         }
@@ -340,7 +399,6 @@ public class CSVGenerator2 extends FileGenerator {
 
         /* Enclose the field in the proper element */
         String element = "field";
-        char array[] = buffer.toCharArray();
         indent(8);
 
         AttributesImpl attributes = new AttributesImpl();
@@ -348,7 +406,7 @@ public class CSVGenerator2 extends FileGenerator {
         attributes.addAttribute("", "number", "number", "CDATA", value);
 
         if (recordnumber < 1) {
-            columns.put(new Integer(fieldnumber), new String(array));
+            columns.put(new Integer(fieldnumber), csv.fieldString());
             element = "column";
         } else if (columns != null) {
             String header = columns.get(new Integer(fieldnumber));
@@ -358,9 +416,9 @@ public class CSVGenerator2 extends FileGenerator {
         }
 
         this.startElement(element, attributes);
-        contentHandler.characters(array, 0, array.length);
+        csv.fieldCharacters(contentHandler);
         endElement(element);
-        buffer.reset();
+        csv.resetField();
 
         fieldnumber ++;
     }
@@ -411,20 +469,35 @@ public class CSVGenerator2 extends FileGenerator {
         contentHandler.endElement(NAMESPACE_URI, name, qual);
     }
 
-    private static final class CSVReader extends Reader implements Locator {
+    /**
+     * <p>Reads the CSV into a buffer, and keeps the characters of the current
+     * field. These are a slice of the buffer as long as they are contiguous,
+     * and are only copied when they are not, or when the buffer is refilled.</p>
+     */
+    private static final class CSVReader implements Locator {
 
         private String uri = null;
         private Reader input = null;
         private int column = 1;
         private int line = 1;
-        private int last = -1;
 
-        private CSVReader(Source source, String encoding, int buffer)
+        /** <p>The characters read, the ones from position up to limit have not been processed.</p> */
+        private final char[] chars;
+        private int position = 0;
+        private int limit = 0;
+
+        /** <p>The current field: the characters in field, followed by the slice of chars from sliceStart to sliceEnd.</p> */
+        private char[] field = new char[256];
+        private int fieldLength = 0;
+        private int sliceStart = 0;
+        private int sliceEnd = 0;
+
+        private CSVReader(Source source, String encoding, char[] chars)
         throws IOException {
             InputStream stream = source.getInputStream();
-            Reader reader = new InputStreamReader(stream, encoding);
-            input = new BufferedReader(reader, buffer);
+            input = new InputStreamReader(stream, encoding);
             uri = source.getURI();
+            this.chars = chars;
         }
 
         @Override
@@ -447,61 +520,74 @@ public class CSVGenerator2 extends FileGenerator {
             return column;
         }
 
-        @Override
         public void close()
         throws IOException {
             input.close();
         }
 
-        @Override
-        public int read()
+        /**
+         * <p>Read the next characters into the buffer, after all have been processed.</p>
+         * @return false at the end of the input.
+         */
+        private boolean fill()
         throws IOException {
-            int c = input.read();
-            if (c < 0) {
-              return c;
+            moveSliceToField();
+            int n = input.read(chars, 0, chars.length);
+            position = 0;
+            limit = Math.max(0, n);
+            return n > 0;
+        }
+
+        /**
+         * <p>Add the characters of the buffer from start to end to the field.</p>
+         */
+        private void appendToField(int start, int end) {
+            if (sliceStart == sliceEnd) {
+                sliceStart = start;
+            } else if (sliceEnd != start) {
+                moveSliceToField();
+                sliceStart = start;
             }
+            sliceEnd = end;
+        }
 
-            if (((c == '\n') && (last != '\r')) || (c == '\r')) {
-                column = 1;
-                line ++;
+        private void moveSliceToField() {
+            int length = sliceEnd - sliceStart;
+            if (length > 0) {
+                if (fieldLength + length > field.length) {
+                    field = Arrays.copyOf(field, Math.max(fieldLength + length, 2 * field.length));
+                }
+                System.arraycopy(chars, sliceStart, field, fieldLength, length);
+                fieldLength += length;
             }
+            sliceStart = sliceEnd = 0;
+        }
 
-            last = c;
-            return c;
+        private int fieldLength() {
+            return fieldLength + sliceEnd - sliceStart;
         }
 
-        @Override
-        public int read(char b[], int o, int l)
-        throws IOException {
-            if (b == null) {
-              throw new NullPointerException();
-            }
-            if ((o<0)||(o>b.length)||(l<0)||((o+l)>b.length)||((o+l)<0)) {
-                throw new IndexOutOfBoundsException();
-            }
-            if (l == 0) {
-              return 0;
-            }
+        private String fieldString() {
+            moveSliceToField();
+            return new String(field, 0, fieldLength);
+        }
 
-            int c = read();
-            if (c == -1) {
-              return -1;
-            }
-            b[o] = (char)c;
-
-            int i = 1;
-            try {
-                for (i = 1; i < l ; i++) {
-                    c = read();
-                    if (c == -1) {
-                      break;
-                    }
-                    b[o + i] = (char)c;
-                }
-            } catch (IOException ee) {
-                return i;
+        /**
+         * <p>Send the field as one characters event.</p>
+         */
+        private void fieldCharacters(ContentHandler handler)
+        throws SAXException {
+            if (fieldLength == 0) {
+                handler.characters(chars, sliceStart, sliceEnd - sliceStart);
+            } else {
+                moveSliceToField();
+                handler.characters(field, 0, fieldLength);
             }
-            return i;
+        }
+
+        private void resetField() {
+            fieldLength = 0;
+            sliceStart = sliceEnd = 0;
         }
     }
 }
@@ -0,0 +1,106 @@
+package org.apache.cocoon.generation;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.cron.QueueMetrics;
+import org.apache.cocoon.environment.SourceResolver;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Generates the metrics of the queues that are processed by a
+ * QueueProcessorCronJob in this JVM.
+ * <p>
+ * The src attribute is the queue-path of a queue. Without src, the metrics of
+ * all queues are generated.
+ * <pre>
+ * {@code
+ * <map:generate type="queue-metrics" src="path-to-queue-directory-on-disk"/>
+ * }
+ * </pre>
+ * generates
+ * <pre>
+ * {@code
+ * <queue-metrics>
+ *   <queue path="..." queue-depth="3" active-jobs="1" active-tasks="4"
+ *     jobs-completed="12" tasks-completed="5310" tasks-failed="2"
+ *     tasks-timed-out="1" tasks-speculated="3" tasks-cached="120" tasks-per-second="8.5" bytes-written="1234567">
+ *     <latency unit="ms" p50="120" p95="480" p99="1023"/>
+ *   </queue>
+ * </queue-metrics>
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class QueueMetricsGenerator extends AbstractGenerator {
+
+    private static final String ROOT_ELEMENT = "queue-metrics";
+    private static final String QUEUE_ELEMENT = "queue";
+    private static final String LATENCY_ELEMENT = "latency";
+
+    private Collection<QueueMetrics> queues;
+
+    @Override
+    public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par)
+            throws ProcessingException, SAXException, IOException {
+        super.setup(resolver, objectModel, src, par);
+        if (null == src) {
+            queues = QueueMetrics.allQueues();
+        } else {
+            QueueMetrics metrics = QueueMetrics.forQueue(src);
+            if (null == metrics) {
+                throw new ProcessingException("No queue processor for queue " + src);
+            }
+            queues = Collections.singletonList(metrics);
+        }
+    }
+
+    @Override
+    public void generate() throws IOException, SAXException, ProcessingException {
+        contentHandler.startDocument();
+        contentHandler.startElement("", ROOT_ELEMENT, ROOT_ELEMENT, new AttributesImpl());
+        for (QueueMetrics metrics : queues) {
+            AttributesImpl attrs = new AttributesImpl();
+            addAttribute(attrs, "path", metrics.getQueuePath());
+            addAttribute(attrs, "queue-depth", metrics.getQueueDepth());
+            addAttribute(attrs, "active-jobs", metrics.getActiveJobs());
+            addAttribute(attrs, "active-tasks", metrics.getActiveTasks());
+            addAttribute(attrs, "jobs-completed", metrics.getJobsCompleted());
+            addAttribute(attrs, "tasks-completed", metrics.getTasksCompleted());
+            addAttribute(attrs, "tasks-failed", metrics.getTasksFailed());
+            addAttribute(attrs, "tasks-timed-out", metrics.getTasksTimedOut());
+            addAttribute(attrs, "tasks-speculated", metrics.getTasksSpeculated());
+            addAttribute(attrs, "tasks-cached", metrics.getTasksCached());
+            addAttribute(attrs, "tasks-per-second", String.format(Locale.ROOT, "%.2f", metrics.getTasksPerSecond()));
+            addAttribute(attrs, "bytes-written", metrics.getBytesWritten());
+            contentHandler.startElement("", QUEUE_ELEMENT, QUEUE_ELEMENT, attrs);
+            AttributesImpl latency = new AttributesImpl();
+            addAttribute(latency, "unit", "ms");
+            addAttribute(latency, "p50", metrics.getLatencyP50());
+            addAttribute(latency, "p95", metrics.getLatencyP95());
+            addAttribute(latency, "p99", metrics.getLatencyP99());
+            contentHandler.startElement("", LATENCY_ELEMENT, LATENCY_ELEMENT, latency);
+            contentHandler.endElement("", LATENCY_ELEMENT, LATENCY_ELEMENT);
+            contentHandler.endElement("", QUEUE_ELEMENT, QUEUE_ELEMENT);
+        }
+        contentHandler.endElement("", ROOT_ELEMENT, ROOT_ELEMENT);
+        contentHandler.endDocument();
+    }
+
+    @Override
+    public void recycle() {
+        queues = null;
+        super.recycle();
+    }
+
+    private static void addAttribute(AttributesImpl attrs, String name, Object value) {
+        attrs.addAttribute("", name, name, "CDATA", String.valueOf(value));
+    }
+
+}
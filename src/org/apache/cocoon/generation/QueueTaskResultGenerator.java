@@ -0,0 +1,100 @@
+package org.apache.cocoon.generation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.ResourceNotFoundException;
+import org.apache.cocoon.components.cron.TaskResultsIndex;
+import org.apache.cocoon.environment.SourceResolver;
+import org.apache.excalibur.xml.sax.SAXParser;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Generates the result of one task of a finished job of a queue that is
+ * processed by a QueueProcessorCronJob.
+ * <p>
+ * The result is read from the zip file of the job in the "out" directory of
+ * the queue, through the index that was written next to it (see
+ * {@link TaskResultsIndex}), so only a small part of the zip file is read.
+ * <pre>
+ * {@code
+ * <map:generate type="queue-task-result" src="path-to-queue-directory-on-disk">
+ *   <map:parameter name="job" value="{job id}"/>
+ *   <map:parameter name="task" value="{task id}"/>
+ * </map:generate>
+ * }
+ * </pre>
+ * generates the task element of the task, as it is in task-results.xml. When
+ * the job or the task can not be found, a ResourceNotFoundException is thrown.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class QueueTaskResultGenerator extends ServiceableGenerator {
+
+    private static final String outDirName = "out";
+
+    private File zipFile;
+    private File indexFile;
+    private String taskId;
+
+    @Override
+    public void setup(SourceResolver resolver, Map objectModel, String src, Parameters par)
+            throws ProcessingException, SAXException, IOException {
+        super.setup(resolver, objectModel, src, par);
+        if (null == src) {
+            throw new ProcessingException("The src attribute must be the queue-path of a queue.");
+        }
+        String jobId = par.getParameter("job", null);
+        taskId = par.getParameter("task", null);
+        if (null == jobId || null == taskId) {
+            throw new ProcessingException("The job and task parameters are mandatory.");
+        }
+        if (jobId.isEmpty() || jobId.contains("/") || jobId.contains("\\")) {
+            throw new ProcessingException("Invalid job id \"" + jobId + "\"");
+        }
+        File outDir = new File(src, outDirName);
+        String basename = String.format("job-%s", jobId);
+        zipFile = new File(outDir, basename + ".zip");
+        indexFile = new File(outDir, basename + "." + TaskResultsIndex.INDEX_EXTENSION);
+        if (!zipFile.isFile() || !indexFile.isFile()) {
+            throw new ResourceNotFoundException("No finished job " + jobId + " with an index in " + outDir);
+        }
+    }
+
+    @Override
+    public void generate() throws IOException, SAXException, ProcessingException {
+        InputStream result = TaskResultsIndex.open(indexFile, zipFile, taskId);
+        if (null == result) {
+            throw new ResourceNotFoundException("No result of task " + taskId + " in " + zipFile);
+        }
+        SAXParser parser = null;
+        try {
+            InputSource inputSource = new InputSource(result);
+            inputSource.setSystemId(zipFile.toURI().toString());
+            inputSource.setEncoding("UTF-8");
+            parser = (SAXParser) manager.lookup(SAXParser.ROLE);
+            parser.parse(inputSource, super.xmlConsumer);
+        } catch (ServiceException e) {
+            throw new ProcessingException("Could not get a parser for the task result.", e);
+        } finally {
+            result.close();
+            if (parser != null) {
+                manager.release(parser);
+            }
+        }
+    }
+
+    @Override
+    public void recycle() {
+        zipFile = null;
+        indexFile = null;
+        taskId = null;
+        super.recycle();
+    }
+
+}
@@ -1,12 +1,15 @@
 package org.apache.cocoon.transformation;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,10 +22,9 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.components.modules.input.InputModuleHelper;
 import org.apache.cocoon.environment.SourceResolver;
 import org.apache.cocoon.transformation.helpers.TextRecorder;
-import org.apache.cocoon.xml.SaxBuffer;
+import org.apache.cocoon.xml.CompactSaxBuffer;
 import org.apache.cocoon.xml.XMLConsumer;
 import org.apache.cocoon.xml.XMLUtils;
-import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.excalibur.xml.sax.XMLizable;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
@@ -33,17 +35,18 @@ import org.xml.sax.SAXException;
  * so that they send to the next component in the pipeline.
  * Contrary to what you would expect, that is not what the AbstractSAXTransformer does.
  * It also fixes the broken behaviour of TextRecording, SerializedXMLRecording and SAXRecording.
+ * SAX recordings are kept in a {@link CompactSaxBuffer}. A large recording can be written to a temporary file,
+ * by configuring <code>&lt;sax-recording spill-threshold="[MB in memory]" spill-directory="[directory]"/&gt;</code>.
+ * Such a recording can be used until the transformer is recycled.
  *
  * @author Rakensi
  */
 public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
 
   /**
-   * The namespaces and their prefixes.
-   * Every list item is a 2-item array of prefix and URI.
-   * List items at higher indexes override items with the same prefix at lower indexes.
+   * The namespaces and their prefixes that are in scope.
    */
-  private final List<String[]> namespaces = new ArrayList<String[]>(10);
+  private final PrefixContext namespaces = new PrefixContext();
   
   /**
    * The current prefix for the transforming element namespace of the transformer.
@@ -52,8 +55,12 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
   
   /**
    * The prefixes emitted by sendAllStartPrefixMapping, to be ended by the next sendAllEndPrefixMapping.
+   * The prefixes of all elements are in one array, prefixMarks has the index of the first prefix of each element.
    */
-  private Stack<List<String>> prefixStack = new Stack<List<String>>();
+  private String[] prefixStack = new String[16];
+  private int prefixStackSize = 0;
+  private int[] prefixMarks = new int[16];
+  private int prefixMarksSize = 0;
   
   /**
    * Are we recording SAX events?
@@ -61,28 +68,110 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
    */
   private boolean recordingSAX;
   
+  /**
+   * The number of bytes of a SAX recording that are kept in memory, before the rest is written to a temporary file.
+   * 0 to keep everything in memory.
+   */
+  private long recordingSpillThreshold = 0;
+  private File recordingSpillDirectory;
+  
+  /**
+   * The SAX recordings of the current request that may have a temporary file, which is removed by recycle.
+   */
+  private final List<CompactSaxBuffer> spillingRecordings = new ArrayList<CompactSaxBuffer>();
+  
+  /**
+   * Input module expressions: {module:accessor}.
+   */
+  private static final Pattern MODULE_PATTERN = Pattern.compile("\\{([^\\{\\}:]+):([^\\{\\}]+)\\}");
+  
+  /**
+   * The maximum number of parsed values kept by interpolateModules.
+   */
+  private static final int TEMPLATE_CACHE_SIZE = 256;
+  
+  /**
+   * The values passed to interpolateModules, parsed, the least recently used first.
+   * Each instance is used by one request at a time, so this needs no synchronization.
+   */
+  private final Map<String, ModuleTemplate> templates = new LinkedHashMap<String, ModuleTemplate>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ModuleTemplate> eldest) {
+      return size() > TEMPLATE_CACHE_SIZE;
+    }
+  };
+  
+  /**
+   * The input module helper of the current request, created when it is first needed.
+   */
+  private InputModuleHelper moduleHelper;
+  
   /**
    * Way too simple parser to interpolate input module expressions.
+   * A value is parsed once into literal text and module expressions, which are kept in a small cache,
+   * so interpolating the same value again only evaluates the expressions.
+   * An expression whose module returns null is left in the result as it is.
    * @param value A string, possibly containing input module expressions.
    * @return The interpolated string.
    */
   protected String interpolateModules(String value) {
-    InputModuleHelper imh = new InputModuleHelper();
-    imh.setup(manager);
-    Pattern modulePattern = Pattern.compile("\\{([^\\{\\}:]+):([^\\{\\}]+)\\}");
-    Matcher moduleMatcher = modulePattern.matcher(value);
-    StringBuffer sb = new StringBuffer();
-    while (moduleMatcher.find()) {
-      String moduleName = moduleMatcher.group(1);
-      String accessor = moduleMatcher.group(2);
-      Object moduleValue = imh.getAttribute(objectModel, moduleName, accessor, null);
-      if (moduleValue != null) moduleMatcher.appendReplacement(sb, moduleValue.toString());
-    }
-    moduleMatcher.appendTail(sb);
-    imh.releaseAll();
+    ModuleTemplate template = templates.get(value);
+    if (template == null) {
+      template = new ModuleTemplate(value);
+      templates.put(value, template);
+    }
+    if (template.modules.length == 0) return value;
+    if (moduleHelper == null) {
+      moduleHelper = new InputModuleHelper();
+      moduleHelper.setup(manager);
+    }
+    StringBuilder sb = new StringBuilder(value.length() + 16 * template.modules.length);
+    for (int i = 0; i < template.modules.length; i++) {
+      sb.append(template.literals[i]);
+      Object moduleValue = moduleHelper.getAttribute(objectModel, template.modules[i], template.accessors[i], null);
+      sb.append(moduleValue != null ? moduleValue.toString() : template.expressions[i]);
+    }
+    sb.append(template.literals[template.modules.length]);
     return sb.toString();
   }
   
+  /**
+   * A value for interpolateModules, split into literal text and module expressions.
+   * The literal text before expression i is literals[i], the text after the last expression is the last literal.
+   */
+  private static final class ModuleTemplate {
+    final String[] literals;
+    final String[] modules;
+    final String[] accessors;
+    final String[] expressions;
+    
+    ModuleTemplate(String value) {
+      List<String> parts = new ArrayList<String>();
+      Matcher moduleMatcher = MODULE_PATTERN.matcher(value);
+      int end = 0;
+      while (moduleMatcher.find()) {
+        parts.add(value.substring(end, moduleMatcher.start()));
+        parts.add(moduleMatcher.group(1));
+        parts.add(moduleMatcher.group(2));
+        parts.add(moduleMatcher.group());
+        end = moduleMatcher.end();
+      }
+      int n = parts.size() / 4;
+      literals = new String[n + 1];
+      modules = new String[n];
+      accessors = new String[n];
+      expressions = new String[n];
+      for (int i = 0; i < n; i++) {
+        literals[i] = parts.get(4 * i);
+        modules[i] = parts.get(4 * i + 1);
+        accessors[i] = parts.get(4 * i + 2);
+        expressions[i] = parts.get(4 * i + 3);
+      }
+      literals[n] = value.substring(end);
+    }
+  }
+  
   /* Some inherited instance properties that you may find useful:
    * context  The current Context object, containing context attributes and access to resources.
    * defaultNamespaceURI  The default namespace of the transforming element. Implementations may set its value in the constructor.
@@ -123,6 +212,12 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
   @Override
   public void configure(Configuration configuration) throws ConfigurationException {
     super.configure(configuration);
+    Configuration recording = configuration.getChild("sax-recording", false);
+    if (recording != null) {
+      this.recordingSpillThreshold = recording.getAttributeAsLong("spill-threshold", 0) * 1024 * 1024;
+      String directory = recording.getAttribute("spill-directory", null);
+      this.recordingSpillDirectory = directory != null ? new File(directory) : null;
+    }
   }
   
   /**
@@ -140,7 +235,9 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
      * It MAY, but need not, be declared, and MUST NOT be bound to any other namespace name.
      * Other prefixes MUST NOT be bound to this namespace name, and it MUST NOT be declared as the default namespace.
      */
-    this.namespaces.add(new String[]{"xml", "http://www.w3.org/XML/1998/namespace"});
+    this.namespaces.declare("xml", "http://www.w3.org/XML/1998/namespace");
+    this.prefixStackSize = 0;
+    this.prefixMarksSize = 0;
     this.recordingSAX = false;
   }
 
@@ -151,6 +248,11 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
   public void recycle() {
       this.ourPrefix = null;
       this.namespaces.clear();
+      releaseModuleHelper();
+      for (CompactSaxBuffer recording : this.spillingRecordings) {
+        recording.recycle();
+      }
+      this.spillingRecordings.clear();
       super.recycle();
   }
   
@@ -160,9 +262,20 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
    * @see org.apache.cocoon.transformation.AbstractSAXTransformer#dispose()
    */
   public void dispose() {
+    releaseModuleHelper();
     super.dispose();
   }
   
+  /**
+   * Release the input modules used by interpolateModules during the request.
+   */
+  private void releaseModuleHelper() {
+    if (this.moduleHelper != null) {
+      this.moduleHelper.releaseAll();
+      this.moduleHelper = null;
+    }
+  }
+  
   /* Transformation methods */
   
   /**
@@ -171,7 +284,7 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
    */
   public void startPrefixMapping(String prefix, String uri) throws SAXException {
     if (prefix != null) {
-      this.namespaces.add(new String[] {prefix, uri});
+      this.namespaces.declare(prefix, uri);
     }
     if (this.namespaceURI.equals(uri)) {
       this.ourPrefix = prefix;
@@ -189,30 +302,13 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
    */
   public void endPrefixMapping(String prefix) throws SAXException {
     if (prefix != null) {
-      // Find and remove the namespace prefix
-      boolean found = false;
-      for (int i = this.namespaces.size() - 1; i >= 0; i--) {
-        final String[] prefixAndUri = (String[]) this.namespaces.get(i);
-        if (prefixAndUri[0].equals(prefix)) {
-          this.namespaces.remove(i);
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
+      // Remove the namespace prefix
+      if (!this.namespaces.undeclare(prefix)) {
         throw new SAXException("Namespace for prefix '" + prefix + "' not found.");
       }
       if (prefix.equals(this.ourPrefix)) {
-        // Reset our current prefix
-        this.ourPrefix = null;
         // Now search if we have a different prefix for our namespace
-        for (int i = this.namespaces.size() - 1; i >= 0; i--) {
-          final String[] prefixAndUri = (String[]) this.namespaces.get(i);
-          if (namespaceURI.equals(prefixAndUri[1])) {
-            this.ourPrefix = prefixAndUri[0];
-            break;
-          }
-        }
+        this.ourPrefix = this.namespaces.prefixOf(namespaceURI);
       }
     }
     if (!this.recordingSAX) {
@@ -248,8 +344,9 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
     Properties format = (Properties) this.stack.pop();
     String text = null;
     if (format != null) {
-      XMLizable xml = endSAXRecording();
+      CompactSaxBuffer xml = (CompactSaxBuffer) endSAXRecording();
       text = XMLUtils.serialize(xml, format);
+      xml.recycle();
     } else {
       text = ((NamespacePrefixRepeatingSerializingRecorder)removeRecorder()).toString();
     }
@@ -259,13 +356,40 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
     return text;
   }
 
+  /**
+   * Start recording of serialized xml into a writer, which is written to while the xml comes in,
+   * so a large recording is not kept in memory. The format is the very simple format of startSerializedXMLRecording(null).
+   * The recording must be ended by {@link #endSerializedXMLStreaming}.
+   * @param writer The writer. It is not closed.
+   */
+  public void startSerializedXMLStreaming(Writer writer) throws SAXException {
+    if (getLogger().isDebugEnabled()) {
+      getLogger().debug("Start serialized XML streaming.");
+    }
+    addRecorder(new NamespacePrefixRepeatingSerializingRecorder(this, writer));
+  }
+
+  /**
+   * End recording of serialized xml into a writer, and write what is left to it.
+   */
+  public void endSerializedXMLStreaming() throws SAXException {
+    ((NamespacePrefixRepeatingSerializingRecorder)removeRecorder()).flush();
+    if (getLogger().isDebugEnabled()) {
+      getLogger().debug("End serialized XML streaming.");
+    }
+  }
+
   /**
    * Start recording of SAX events. All incoming events are recorded and not forwarded.
    * The resulting XMLizable can be obtained by the matching {@link #endSAXRecording} call.
    */
   public void startSAXRecording()
   throws SAXException {
-    addRecorder(new NamespacePrefixRepeatingSaxBuffer(this));
+    NamespacePrefixRepeatingSaxBuffer recording = new NamespacePrefixRepeatingSaxBuffer(this);
+    if (this.recordingSpillThreshold > 0) {
+      this.spillingRecordings.add(recording);
+    }
+    addRecorder(recording);
     this.recordingSAX = true;
   }
 
@@ -390,87 +514,193 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
    * @throws SAXException
    */
   protected void sendAllStartPrefixMapping(List<String> prefixes) throws SAXException {
-    Map<String, String> prefixAndUris = uniqueNamespacePrefixes();
+    pushPrefixMark();
     for (String prefix : prefixes) {
-      String uri = prefixAndUris.get(prefix);
-      contentHandler.startPrefixMapping(prefix, uri);
+      pushPrefix(prefix);
     }
-    // Remember the prefixes for sendAllEndPrefixMapping.
-    this.prefixStack.push(prefixes);
+    sendPushedStartPrefixMapping();
   }
 
   /**
-   * Send all end prefix mapping events to the current content handler.
+   * Send start prefix mapping events to the current content handler, for the prefixes used by a startElement.
    * @throws SAXException
    */
-  protected void sendAllEndPrefixMapping() throws SAXException {
-    List<String> prefixes = this.prefixStack.pop();
-    for (String prefix : prefixes) {
-      contentHandler.endPrefixMapping(prefix);
+  private void sendUsedStartPrefixMapping(String namespaceURI, String qName, Attributes atts) throws SAXException {
+    pushUsedPrefixes(namespaceURI, qName, atts);
+    sendPushedStartPrefixMapping();
+  }
+
+  private void sendPushedStartPrefixMapping() throws SAXException {
+    for (int i = this.prefixMarks[this.prefixMarksSize - 1]; i < this.prefixStackSize; i++) {
+      String prefix = this.prefixStack[i];
+      contentHandler.startPrefixMapping(prefix, this.namespaces.uri(prefix));
     }
   }
-  
+
   /**
-   * A map of namespaces (prefix => URI) currently in use.
-   * @return
+   * Send all end prefix mapping events to the current content handler.
+   * @throws SAXException
    */
-  private Map<String, String> uniqueNamespacePrefixes() {
-    Map<String, String> prefixAndUris = new HashMap<String, String>();
-    // Go through namespaces in order, so newer declarations for a prefix overwrite older ones.
-    final int l = this.namespaces.size();
-    for (int i = 0; i < l; i++) {
-      String[] prefixAndUri = (String[]) this.namespaces.get(i);
-      prefixAndUris.put(prefixAndUri[0], prefixAndUri[1]);
+  protected void sendAllEndPrefixMapping() throws SAXException {
+    int mark = popPrefixMark();
+    for (int i = mark; i < this.prefixStackSize; i++) {
+      contentHandler.endPrefixMapping(this.prefixStack[i]);
+      this.prefixStack[i] = null;
     }
-    return prefixAndUris;
+    this.prefixStackSize = mark;
   }
 
   /**
-   * Make a list of unique prefixes used by a startElement. If the tag has no prefix, guess that no attributes have prefixes.
+   * Push the unique prefixes used by a startElement on the prefix stack, after a new mark.
+   * If the tag has no prefix, guess that no attributes have prefixes.
    * @param namespaceURI
    * @param qName
    * @param atts
-   * @return
    */
-  private static List<String> getUsedPrefixes(String namespaceURI, String qName, Attributes atts) {
-    int nrPrefixes = namespaceURI.length() > 0 ? 1 : 0;
-    for (int i = 0; i < atts.getLength(); ++i) {
-      String name = atts.getQName(i);
-      if (name != null && name.contains(":")) ++nrPrefixes;
+  private void pushUsedPrefixes(String namespaceURI, String qName, Attributes atts) {
+    pushPrefixMark();
+    if (namespaceURI.length() > 0) {
+      int colon = qName.indexOf(':');
+      pushPrefix(colon >= 0 ? qName.substring(0, colon) : "");
     }
-    List<String> prefixes = new ArrayList<String>(nrPrefixes);
-    if (namespaceURI.length() > 0) prefixes.add(qName.contains(":") ? qName.substring(0, qName.indexOf(':')) : "");
     for (int i = 0; i < atts.getLength(); ++i) {
       String name = atts.getQName(i);
-      if (name != null && name.contains(":")) {
-        String prefix = name.substring(0, name.indexOf(':'));
-        if (!prefixes.contains(prefix)) prefixes.add(prefix);
+      int colon = name != null ? name.indexOf(':') : -1;
+      if (colon >= 0 && !isPushedPrefix(name, colon)) {
+        pushPrefix(name.substring(0, colon));
       }
     }
-    return prefixes;
+  }
+
+  /**
+   * Is the prefix of a qualified name already on the prefix stack, after the last mark?
+   */
+  private boolean isPushedPrefix(String qName, int colon) {
+    for (int i = this.prefixMarks[this.prefixMarksSize - 1]; i < this.prefixStackSize; i++) {
+      String prefix = this.prefixStack[i];
+      if (prefix.length() == colon && qName.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  private void pushPrefix(String prefix) {
+    if (this.prefixStackSize == this.prefixStack.length) {
+      this.prefixStack = Arrays.copyOf(this.prefixStack, 2 * this.prefixStackSize);
+    }
+    this.prefixStack[this.prefixStackSize++] = prefix;
+  }
+
+  private void pushPrefixMark() {
+    if (this.prefixMarksSize == this.prefixMarks.length) {
+      this.prefixMarks = Arrays.copyOf(this.prefixMarks, 2 * this.prefixMarksSize);
+    }
+    this.prefixMarks[this.prefixMarksSize++] = this.prefixStackSize;
+  }
+
+  private int popPrefixMark() {
+    return this.prefixMarks[--this.prefixMarksSize];
+  }
+
+  /**
+   * The namespace prefixes that are in scope, a stack of declarations in array order.
+   * The innermost declaration of every prefix is found through a hash map, so looking up a prefix takes constant time,
+   * and does not depend on the number of namespaces that are in scope.
+   * An ended declaration is removed from the map at once, and from the arrays when it is on top.
+   */
+  private static final class PrefixContext {
+    private String[] prefixes = new String[16];
+    private String[] uris = new String[16];
+    /**
+     * The index of the declaration of the same prefix that a declaration hides, or -1.
+     */
+    private int[] hidden = new int[16];
+    private int size = 0;
+    /**
+     * The index of the innermost declaration of every prefix.
+     */
+    private final Map<String, Integer> innermost = new HashMap<String, Integer>();
+
+    void declare(String prefix, String uri) {
+      if (size == prefixes.length) {
+        prefixes = Arrays.copyOf(prefixes, 2 * size);
+        uris = Arrays.copyOf(uris, 2 * size);
+        hidden = Arrays.copyOf(hidden, 2 * size);
+      }
+      Integer previous = innermost.put(prefix, size);
+      prefixes[size] = prefix;
+      uris[size] = uri;
+      hidden[size] = previous != null ? previous : -1;
+      size++;
+    }
+
+    /**
+     * End the innermost declaration of a prefix.
+     * @return false if the prefix is not declared.
+     */
+    boolean undeclare(String prefix) {
+      Integer index = innermost.get(prefix);
+      if (index == null) return false;
+      int i = index;
+      if (hidden[i] >= 0) {
+        innermost.put(prefix, hidden[i]);
+      } else {
+        innermost.remove(prefix);
+      }
+      prefixes[i] = null;
+      uris[i] = null;
+      while (size > 0 && prefixes[size - 1] == null) {
+        size--;
+      }
+      return true;
+    }
+
+    /**
+     * @return The namespace URI of a prefix, or null if it is not declared.
+     */
+    String uri(String prefix) {
+      Integer index = innermost.get(prefix);
+      return index != null ? uris[index] : null;
+    }
+
+    /**
+     * @return The innermost prefix that is declared for a namespace URI, or null.
+     */
+    String prefixOf(String uri) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (prefixes[i] != null && uri.equals(uris[i]) && innermost.get(prefixes[i]) == i) {
+          return prefixes[i];
+        }
+      }
+      return null;
+    }
+
+    void clear() {
+      Arrays.fill(prefixes, 0, size, null);
+      Arrays.fill(uris, 0, size, null);
+      size = 0;
+      innermost.clear();
+    }
   }
   
   /**
    * This SAX buffer repeats namespace prefix mappings for all namespace prefixes that are used by an element.
    */
-  public class NamespacePrefixRepeatingSaxBuffer extends SaxBuffer {
-    private static final long serialVersionUID = 1L;
+  public class NamespacePrefixRepeatingSaxBuffer extends CompactSaxBuffer {
     
     private AbstractSAXPipelineTransformer transformer;
     
     public NamespacePrefixRepeatingSaxBuffer(AbstractSAXPipelineTransformer transformer) {
+      super(transformer.recordingSpillThreshold, transformer.recordingSpillDirectory);
       this.transformer = transformer;
     }
 
     public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
-      List<String> prefixes = getUsedPrefixes(namespaceURI, qName, atts);
-      transformer.sendAllStartPrefixMapping(prefixes);
-      saxbits.add(new StartElement(namespaceURI, localName, qName, atts));
+      transformer.sendUsedStartPrefixMapping(namespaceURI, qName, atts);
+      super.startElement(namespaceURI, localName, qName, atts);
     }
 
     public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
-      String nsPrefix = (qName.contains(":") ? qName.substring(0, qName.indexOf(':')) : "");
-      saxbits.add(new EndElement(namespaceURI, localName, qName));
+      super.endElement(namespaceURI, localName, qName);
       transformer.sendAllEndPrefixMapping();
     }
     
@@ -478,20 +708,99 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
   
   /**
    * A recorder that serializes the incoming XML, repeating namespace prefix mappings for all namespace prefixes that are used by an element. 
+   * Text is escaped straight into the buffer. With a writer, the buffer is written to it whenever it is full, so a large recording is not kept in memory.
    */
   public class NamespacePrefixRepeatingSerializingRecorder implements XMLConsumer {
+    private static final int FLUSH_SIZE = 8192;
     private AbstractSAXPipelineTransformer transformer;
     private StringBuilder text;
+    private Writer writer;
+    /**
+     * For copying attribute values and the buffer, reused for every event.
+     */
+    private char[] chars = new char[256];
     
     public NamespacePrefixRepeatingSerializingRecorder(AbstractSAXPipelineTransformer transformer) {
+      this(transformer, null);
+    }
+    
+    /**
+     * @param writer The writer that the recording is written to, or null to keep it in the buffer.
+     */
+    public NamespacePrefixRepeatingSerializingRecorder(AbstractSAXPipelineTransformer transformer, Writer writer) {
       this.transformer = transformer;
-      text = new StringBuilder();
+      this.writer = writer;
+      text = new StringBuilder(writer != null ? FLUSH_SIZE + 256 : 256);
     }
     
     public String toString() {
       return text.toString();
     }
     
+    /**
+     * Write what is in the buffer to the writer, if there is one.
+     */
+    public void flush() throws SAXException {
+      if (writer == null || text.length() == 0) return;
+      int length = text.length();
+      if (chars.length < length) {
+        chars = new char[Math.max(length, 2 * chars.length)];
+      }
+      text.getChars(0, length, chars, 0);
+      try {
+        writer.write(chars, 0, length);
+      } catch (IOException e) {
+        throw new SAXException("Could not write serialized XML recording", e);
+      }
+      text.setLength(0);
+    }
+    
+    private void flushIfFull() throws SAXException {
+      if (writer != null && text.length() >= FLUSH_SIZE) {
+        flush();
+      }
+    }
+    
+    /**
+     * Append characters to the buffer, escaped like StringEscapeUtils.escapeXml.
+     * Runs of characters that need no escaping are appended at once.
+     */
+    private void appendEscaped(char ch[], int start, int length) {
+      int end = start + length;
+      int run = start;
+      for (int i = start; i < end; i++) {
+        char c = ch[i];
+        String entity;
+        switch (c) {
+          case '&': entity = "&amp;"; break;
+          case '<': entity = "&lt;"; break;
+          case '>': entity = "&gt;"; break;
+          case '"': entity = "&quot;"; break;
+          case '\'': entity = "&apos;"; break;
+          default:
+            if (c < 0x80) continue;
+            entity = null;
+        }
+        text.append(ch, run, i - run);
+        if (entity != null) {
+          text.append(entity);
+        } else {
+          text.append("&#").append((int) c).append(';');
+        }
+        run = i + 1;
+      }
+      text.append(ch, run, end - run);
+    }
+    
+    private void appendEscaped(String value) {
+      int length = value.length();
+      if (chars.length < length) {
+        chars = new char[Math.max(length, 2 * chars.length)];
+      }
+      value.getChars(0, length, chars, 0);
+      appendEscaped(chars, 0, length);
+    }
+    
     // ContentHandler Interface
 
     public void skippedEntity(String name) throws SAXException {
@@ -501,11 +810,13 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
     }
 
     public void ignorableWhitespace(char ch[], int start, int length) throws SAXException {
-      text.append(String.copyValueOf(ch, start, length));
+      text.append(ch, start, length);
+      flushIfFull();
     }
 
     public void processingInstruction(String target, String data) throws SAXException {
       text.append("<?").append(target).append(" ").append(data).append("?>");
+      flushIfFull();
     }
 
     public void startDocument() throws SAXException {
@@ -516,28 +827,38 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
 
     public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
       text.append('<').append(qName);
-      List<String> prefixes = getUsedPrefixes(namespaceURI, qName, atts);
-      Map<String, String> prefixAndUris = uniqueNamespacePrefixes();
-      for (String prefix : prefixes) {
-        String uri = prefixAndUris.get(prefix);
+      transformer.pushUsedPrefixes(namespaceURI, qName, atts);
+      int mark = transformer.popPrefixMark();
+      for (int i = mark; i < transformer.prefixStackSize; i++) {
+        String prefix = transformer.prefixStack[i];
+        String uri = transformer.namespaces.uri(prefix);
         text.append(" xmlns");
         if (!(prefix.equals(""))) {
             text.append(":").append(prefix);
         }
-        text.append("=\"").append(StringEscapeUtils.escapeXml(uri)).append('"');
+        text.append("=\"");
+        appendEscaped(String.valueOf(uri));
+        text.append('"');
+        transformer.prefixStack[i] = null;
       }
+      transformer.prefixStackSize = mark;
       for (int i = 0; i < atts.getLength(); ++i) {
-        text.append(' ').append(atts.getQName(i)).append("=\"").append(StringEscapeUtils.escapeXml(atts.getValue(i))).append('"');
+        text.append(' ').append(atts.getQName(i)).append("=\"");
+        appendEscaped(atts.getValue(i));
+        text.append('"');
       }
       text.append('>');
+      flushIfFull();
     }
 
     public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
       text.append("</").append(qName).append('>');
+      flushIfFull();
     }
 
     public void characters(char ch[], int start, int length) throws SAXException {
-      text.append(StringEscapeUtils.escapeXml(String.copyValueOf(ch, start, length)));
+      appendEscaped(ch, start, length);
+      flushIfFull();
     }
 
     public void startPrefixMapping(String prefix, String uri) throws SAXException {
@@ -555,7 +876,8 @@ public class AbstractSAXPipelineTransformer extends AbstractSAXTransformer {
     }
 
     public void comment(char ch[], int start, int length) throws SAXException {
-      text.append("<!--").append(String.copyValueOf(ch, start, length)).append("-->");
+      text.append("<!--").append(ch, start, length).append("-->");
+      flushIfFull();
     }
 
     public void startEntity(String name) throws SAXException {
@@ -0,0 +1,328 @@
+package org.apache.cocoon.transformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.components.cron.JobSubmission;
+import org.apache.cocoon.components.cron.QueueProcessorCronJob.JobPriority;
+import org.apache.cocoon.environment.SourceResolver;
+import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.cocoon.xml.XMLUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Submits a job to a queue that is processed by a QueueProcessorCronJob,
+ * streaming its tasks from the pipeline into the job file.
+ * <p>
+ * This transformer triggers for elements in the namespace
+ * "http://apache.org/cocoon/queue/1.0". Everything inside a queue:job element
+ * is written to the tasks element of a new job file, as it passes, so a job
+ * with any number of tasks is submitted in one pass with constant memory.
+ * Only a host-limits element, which must come before the tasks, is written
+ * to the job element itself:
+ * <pre>
+ * {@code
+ * <queue:job queue-path="path-to-queue-directory-on-disk"? id="..."?
+ *            name="..." description="..." max-concurrent="3|auto"
+ *            task-timeout="..."? priority="high|normal|low"? speculative="true"?
+ *            cache="true"?>
+ *   <host-limits max-concurrent="..."? rate="..."? burst="..."?>
+ *     <host target="..." max-concurrent="..."? rate="..."? burst="..."?/>*
+ *   </host-limits>?
+ *   <task id="task-1" depends-on="ids of other tasks"?>
+ *     <uri>http://localhost:8888/koop/front/queue-test?id=1</uri>
+ *     <content>{your XML document goes here}</content>?
+ *   </task>
+ *   ...
+ * </queue:job>
+ * }
+ * </pre>
+ * The queue-path defaults to the queue-path parameter of the transformer, the
+ * id to a random UUID, max-concurrent to 1 and created to today. The other
+ * attributes are copied to the job element.
+ * <p>
+ * The job is written to a temporary file that is renamed to "job-{id}.xml"
+ * when the queue:job element ends, see {@link JobSubmission}. If the pipeline
+ * fails before that, no job is submitted. Jobs with a priority are put in the
+ * lane of that priority. The queue:job element is replaced by
+ * {@code <queue:submitted id="..." file="..." tasks="number of tasks"/>}.
+ *
+ * @author <a href="mailto:huib.verweij@koop.overheid.nl">Huib Verweij</a>
+ */
+public class QueueJobTransformer extends AbstractSAXTransformer {
+
+    public static final String QUEUE_NAMESPACE_URI = "http://apache.org/cocoon/queue/1.0";
+    private static final String QUEUE_PREFIX = "queue";
+    private static final String JOB_ELEMENT = "job";
+    private static final String SUBMITTED_ELEMENT = "submitted";
+    private static final String TASKS_ELEMENT = "tasks";
+    private static final String TASK_ELEMENT = "task";
+    private static final String HOST_LIMITS_ELEMENT = "host-limits";
+    private static final String QUEUE_PATH_ATTR = "queue-path";
+    private static final String ID_ATTR = "id";
+    private static final String CREATED_ATTR = "created";
+    private static final String MAX_CONCURRENT_ATTR = "max-concurrent";
+    private static final String PRIORITY_ATTR = "priority";
+    private static final String FILE_ATTR = "file";
+    private static final String TASKS_ATTR = "tasks";
+
+    private static final String inDirName = "in";
+
+    private final SAXTransformerFactory saxTransformerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
+
+    private String defaultQueuePath;
+
+    // The job that is being written, null outside of a queue:job element.
+    private JobSubmission submission = null;
+    private String jobId;
+    private TransformerHandler jobHandler;
+    private ContentHandler pipelineContentHandler;
+    private LexicalHandler pipelineLexicalHandler;
+    // Depth of the current element inside queue:job.
+    private int depth;
+    private int taskCount;
+    // Set when the tasks element of the job file has been started.
+    private boolean tasksStarted;
+    // The prefix mappings that are in scope, innermost last.
+    private final List<String[]> prefixMappings = new ArrayList<String[]>();
+    // The prefix mappings that were declared on the job element.
+    private final List<String> jobPrefixes = new ArrayList<String>();
+
+    public QueueJobTransformer() {
+        this.defaultNamespaceURI = QUEUE_NAMESPACE_URI;
+    }
+
+    @Override
+    public void setup(SourceResolver resolver, Map objectModel, String src,
+            Parameters params) throws ProcessingException, SAXException, IOException {
+        super.setup(resolver, objectModel, src, params);
+        defaultQueuePath = params.getParameter(QUEUE_PATH_ATTR, null);
+    }
+
+    @Override
+    public void startTransformingElement(String uri, String name, String raw, Attributes attr)
+            throws ProcessingException, IOException, SAXException {
+        if (name.equals(JOB_ELEMENT) && null == submission) {
+            startJob(attr);
+        } else {
+            throw new ProcessingException("Unexpected element " + raw);
+        }
+    }
+
+    @Override
+    public void endTransformingElement(String uri, String name, String raw)
+            throws ProcessingException, IOException, SAXException {
+        if (name.equals(JOB_ELEMENT)) {
+            endJob();
+        } else {
+            throw new ProcessingException("Unexpected element " + raw);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String name, String raw, Attributes attr) throws SAXException {
+        if (null != submission && 0 == depth) {
+            if (uri.isEmpty() && HOST_LIMITS_ELEMENT.equals(name)) {
+                if (tasksStarted) {
+                    throw new SAXException("The " + HOST_LIMITS_ELEMENT + " element must come before the tasks of a job.");
+                }
+            } else {
+                startTasks();
+                if (TASK_ELEMENT.equals(name)) {
+                    taskCount++;
+                }
+            }
+        }
+        if (null != submission) {
+            depth++;
+        }
+        super.startElement(uri, name, raw, attr);
+    }
+
+    @Override
+    public void endElement(String uri, String name, String raw) throws SAXException {
+        // At depth 0 this is the end of queue:job itself.
+        if (null != submission && depth > 0) {
+            depth--;
+        }
+        super.endElement(uri, name, raw);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        prefixMappings.add(new String[] {prefix, uri});
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        for (int i = prefixMappings.size() - 1; i >= 0; i--) {
+            if (prefixMappings.get(i)[0].equals(prefix)) {
+                prefixMappings.remove(i);
+                break;
+            }
+        }
+        super.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void recycle() {
+        abortJob();
+        prefixMappings.clear();
+        defaultQueuePath = null;
+        super.recycle();
+    }
+
+    /**
+     * Open the job file and write the job element, and send the events inside
+     * the queue:job element to the job file from now on.
+     */
+    private void startJob(Attributes attr) throws ProcessingException, SAXException, IOException {
+        String queuePath = attr.getIndex(QUEUE_PATH_ATTR) >= 0 ? attr.getValue(QUEUE_PATH_ATTR) : defaultQueuePath;
+        if (null == queuePath) {
+            throw new ProcessingException("The " + QUEUE_PATH_ATTR + " attribute or parameter is mandatory for " + JOB_ELEMENT + " elements.");
+        }
+        jobId = attr.getIndex(ID_ATTR) >= 0 ? attr.getValue(ID_ATTR) : UUID.randomUUID().toString();
+        File inDir = new File(queuePath, inDirName);
+        JobPriority priority = JobPriority.fromAttribute(attr.getValue(PRIORITY_ATTR));
+        File laneDir = null == priority ? inDir : priority.laneDirectory(inDir);
+
+        AttributesImpl jobAttributes = new AttributesImpl();
+        jobAttributes.addCDATAAttribute(ID_ATTR, jobId);
+        jobAttributes.addCDATAAttribute(CREATED_ATTR, new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+        jobAttributes.addCDATAAttribute(MAX_CONCURRENT_ATTR, "1");
+        for (int i = 0; i < attr.getLength(); i++) {
+            String attrName = attr.getLocalName(i);
+            if (!attr.getURI(i).isEmpty() || QUEUE_PATH_ATTR.equals(attrName) || ID_ATTR.equals(attrName)) {
+                continue;
+            }
+            int index = jobAttributes.getIndex(attrName);
+            if (index >= 0) {
+                jobAttributes.setValue(index, attr.getValue(i));
+            } else {
+                jobAttributes.addCDATAAttribute(attrName, attr.getValue(i));
+            }
+        }
+
+        submission = new JobSubmission(laneDir, jobId);
+        try {
+            jobHandler = saxTransformerFactory.newTransformerHandler();
+        } catch (TransformerConfigurationException ex) {
+            abortJob();
+            throw new ProcessingException("Could not create a serializer for the job file", ex);
+        }
+        Properties properties = XMLUtils.createPropertiesForXML(false);
+        properties.setProperty(OutputKeys.ENCODING, "UTF-8");
+        // Indentation would change the content of the tasks.
+        properties.setProperty(OutputKeys.INDENT, "no");
+        jobHandler.getTransformer().setOutputProperties(properties);
+        jobHandler.setResult(new StreamResult(submission.getOutputStream()));
+        depth = 0;
+        taskCount = 0;
+
+        if (this.getLogger().isInfoEnabled()) {
+            this.getLogger().info(String.format("Writing job %s", submission.getJobFile().getAbsolutePath()));
+        }
+
+        jobHandler.startDocument();
+        // The content of the tasks may use prefixes that were declared outside of queue:job.
+        jobPrefixes.clear();
+        for (int i = prefixMappings.size() - 1; i >= 0; i--) {
+            String[] mapping = prefixMappings.get(i);
+            if (!QUEUE_NAMESPACE_URI.equals(mapping[1]) && !jobPrefixes.contains(mapping[0])) {
+                jobPrefixes.add(mapping[0]);
+                jobHandler.startPrefixMapping(mapping[0], mapping[1]);
+            }
+        }
+        jobHandler.startElement("", JOB_ELEMENT, JOB_ELEMENT, jobAttributes);
+        tasksStarted = false;
+        pipelineContentHandler = contentHandler;
+        pipelineLexicalHandler = lexicalHandler;
+        contentHandler = jobHandler;
+        lexicalHandler = jobHandler;
+    }
+
+    /**
+     * Start the tasks element of the job file, if that has not been done yet.
+     * Everything after the host-limits goes inside it.
+     */
+    private void startTasks() throws SAXException {
+        if (!tasksStarted) {
+            tasksStarted = true;
+            jobHandler.startElement("", TASKS_ELEMENT, TASKS_ELEMENT, EMPTY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Finish the job file and put it in the queue.
+     */
+    private void endJob() throws ProcessingException, SAXException, IOException {
+        contentHandler = pipelineContentHandler;
+        lexicalHandler = pipelineLexicalHandler;
+        startTasks();
+        jobHandler.endElement("", TASKS_ELEMENT, TASKS_ELEMENT);
+        jobHandler.endElement("", JOB_ELEMENT, JOB_ELEMENT);
+        for (String prefix : jobPrefixes) {
+            jobHandler.endPrefixMapping(prefix);
+        }
+        jobHandler.endDocument();
+        File jobFile;
+        try {
+            jobFile = submission.commit();
+        } finally {
+            abortJob();
+        }
+
+        if (this.getLogger().isInfoEnabled()) {
+            this.getLogger().info(String.format("Submitted job %s with %d tasks", jobFile.getAbsolutePath(), taskCount));
+        }
+
+        AttributesImpl attr = new AttributesImpl();
+        attr.addCDATAAttribute(ID_ATTR, jobId);
+        attr.addCDATAAttribute(FILE_ATTR, jobFile.getName());
+        attr.addCDATAAttribute(TASKS_ATTR, String.valueOf(taskCount));
+        xmlConsumer.startElement(QUEUE_NAMESPACE_URI, SUBMITTED_ELEMENT,
+                String.format("%s:%s", QUEUE_PREFIX, SUBMITTED_ELEMENT), attr);
+        xmlConsumer.endElement(QUEUE_NAMESPACE_URI, SUBMITTED_ELEMENT,
+                String.format("%s:%s", QUEUE_PREFIX, SUBMITTED_ELEMENT));
+    }
+
+    /**
+     * Stop writing the current job, if any. A job that was not committed is
+     * removed.
+     */
+    private void abortJob() {
+        if (null == submission) {
+            return;
+        }
+        if (contentHandler == jobHandler) {
+            contentHandler = pipelineContentHandler;
+            lexicalHandler = pipelineLexicalHandler;
+        }
+        try {
+            submission.close();
+        } catch (IOException ex) {
+            this.getLogger().error("Could not remove unfinished job " + submission.getJobFile(), ex);
+        }
+        submission = null;
+        jobHandler = null;
+    }
+
+}
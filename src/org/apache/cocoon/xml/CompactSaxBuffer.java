@@ -0,0 +1,800 @@
+package org.apache.cocoon.xml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avalon.excalibur.pool.Recyclable;
+import org.apache.excalibur.xml.sax.XMLizable;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * A SAX recorder like {@link SaxBuffer}, that keeps the recorded events in a compact form instead of an object per event.
+ * <p>
+ * The events are written to blocks of characters. Every event is a one-character code followed by its arguments
+ * as variable-length integers of 15 bits per character, and the characters of its text.
+ * The names of elements and attributes are kept once, in a table of namespace URI, local name, qualified name and type,
+ * and referred to by their index in it. Prefixes, namespace URIs and other names are kept once in a table of names.
+ * Attribute values and other text are written with the events, so they are spilled with the blocks.
+ * The blocks are at most 64 kB, so a large recording is never copied to grow it.
+ * A recording takes less than half the memory of a SaxBuffer of the same events.
+ * <p>
+ * Text that is not longer than a quarter of a block is kept in one block, and is replayed straight from it, without copying.
+ * Attribute values only become strings when the handler asks for them.
+ * Replay takes about as long as that of a SaxBuffer.
+ * <p>
+ * With a spill threshold, the blocks are written to a temporary file as soon as they take more memory than that.
+ * The file is removed by {@link #recycle()}.
+ * <p>
+ * A recording can be replayed any number of times. Like a SaxBuffer, it is not thread-safe.
+ *
+ * @author Rakensi
+ */
+public class CompactSaxBuffer implements XMLConsumer, XMLizable, Recyclable {
+
+  private static final char START_DOCUMENT = 1;
+  private static final char END_DOCUMENT = 2;
+  private static final char START_ELEMENT = 3;
+  private static final char END_ELEMENT = 4;
+  private static final char CHARACTERS = 5;
+  private static final char IGNORABLE_WHITESPACE = 6;
+  private static final char PROCESSING_INSTRUCTION = 7;
+  private static final char SKIPPED_ENTITY = 8;
+  private static final char START_PREFIX_MAPPING = 9;
+  private static final char END_PREFIX_MAPPING = 10;
+  private static final char START_CDATA = 11;
+  private static final char END_CDATA = 12;
+  private static final char COMMENT = 13;
+  private static final char START_ENTITY = 14;
+  private static final char END_ENTITY = 15;
+  private static final char START_DTD = 16;
+  private static final char END_DTD = 17;
+
+  private static final int FIRST_BLOCK_SIZE = 256;
+  private static final int BLOCK_SIZE = 32 * 1024;
+  /**
+   * Text up to this many characters is kept in one block. Longer text is spread over blocks, and copied when it is replayed.
+   */
+  private static final int CONTIGUOUS_TEXT = BLOCK_SIZE / 4;
+  /**
+   * The most characters that an integer takes.
+   */
+  private static final int MAX_INT_SIZE = 3;
+
+  /**
+   * The bytes in memory after which blocks are written to a temporary file, 0 for never.
+   */
+  private final long spillThreshold;
+  private final File spillDirectory;
+
+  /**
+   * The table of names. Index 0 is null.
+   */
+  private String[] names = new String[64];
+  private int nameCount = 1;
+  private final Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+
+  /**
+   * The table of element and attribute names: namespace URI, local name, qualified name and, for attributes, type.
+   * Entries with the same qualified name are chained through qNameNext, the first one is in qNameIndex.
+   */
+  private String[][] qNames = new String[64][];
+  private int[] qNameNext = new int[64];
+  private int qNameCount = 0;
+  private final Map<String, Integer> qNameIndex = new HashMap<String, Integer>();
+
+  /**
+   * The full blocks that are in memory, and the number of characters used in each.
+   */
+  private final List<char[]> blocks = new ArrayList<char[]>();
+  private int[] blockLengths = new int[16];
+  private long blocksSize = 0;
+  /**
+   * The block that events are written to.
+   */
+  private char[] block = new char[FIRST_BLOCK_SIZE];
+  private int length = 0;
+
+  /**
+   * The temporary file with the blocks that came before the ones in memory.
+   * Every block is written as its number of characters, followed by the characters.
+   */
+  private File spillFile;
+  private DataOutputStream spillOut;
+  private byte[] spillBytes;
+  private int spilledBlocks = 0;
+  private long spilled = 0;
+
+  /**
+   * The attributes passed to startElement during replay, reused for every element.
+   */
+  private final ReplayAttributes replayAttributes = new ReplayAttributes();
+  private char[] replayChars = new char[256];
+
+  /**
+   * Create a buffer that keeps everything in memory.
+   */
+  public CompactSaxBuffer() {
+    this(0, null);
+  }
+
+  /**
+   * Create a buffer that writes its recording to a temporary file when it becomes large.
+   * @param spillThreshold The number of bytes kept in memory before they are written to a file, 0 to keep everything in memory.
+   * @param spillDirectory The directory for the temporary file, or null for the default temporary directory.
+   */
+  public CompactSaxBuffer(long spillThreshold, File spillDirectory) {
+    this.spillThreshold = Math.max(0, spillThreshold);
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * @return true if nothing has been recorded.
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * @return The number of bytes of the recorded events, in memory and on disk, not counting the tables of names.
+   */
+  public long size() {
+    return 2 * (spilled + blocksSize + length);
+  }
+
+  /**
+   * Remove the recorded events and the temporary file, so the buffer can be used again.
+   */
+  public void recycle() {
+    Arrays.fill(names, 0, nameCount, null);
+    nameCount = 1;
+    nameIndex.clear();
+    Arrays.fill(qNames, 0, qNameCount, null);
+    qNameCount = 0;
+    qNameIndex.clear();
+    blocks.clear();
+    blocksSize = 0;
+    block = new char[FIRST_BLOCK_SIZE];
+    length = 0;
+    closeSpillFile();
+    if (spillFile != null) {
+      spillFile.delete();
+      spillFile = null;
+    }
+    spilledBlocks = 0;
+    spilled = 0;
+    replayAttributes.clear();
+  }
+
+  /* Recording */
+
+  public void setDocumentLocator(Locator locator) {
+    // Not recorded, like SaxBuffer.
+  }
+
+  public void startDocument() throws SAXException {
+    writeCode(START_DOCUMENT);
+  }
+
+  public void endDocument() throws SAXException {
+    writeCode(END_DOCUMENT);
+  }
+
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    writeCode(START_PREFIX_MAPPING);
+    writeName(prefix);
+    writeName(uri);
+  }
+
+  public void endPrefixMapping(String prefix) throws SAXException {
+    writeCode(END_PREFIX_MAPPING);
+    writeName(prefix);
+  }
+
+  public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+    writeCode(START_ELEMENT);
+    writeQName(namespaceURI, localName, qName, null);
+    int n = atts.getLength();
+    writeInt(n);
+    for (int i = 0; i < n; i++) {
+      writeQName(atts.getURI(i), atts.getLocalName(i), atts.getQName(i), atts.getType(i));
+      writeString(atts.getValue(i));
+    }
+  }
+
+  public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+    writeCode(END_ELEMENT);
+    writeQName(namespaceURI, localName, qName, null);
+  }
+
+  public void characters(char[] ch, int start, int len) throws SAXException {
+    writeCode(CHARACTERS);
+    writeChars(ch, start, len);
+  }
+
+  public void ignorableWhitespace(char[] ch, int start, int len) throws SAXException {
+    writeCode(IGNORABLE_WHITESPACE);
+    writeChars(ch, start, len);
+  }
+
+  public void processingInstruction(String target, String data) throws SAXException {
+    writeCode(PROCESSING_INSTRUCTION);
+    writeName(target);
+    writeString(data);
+  }
+
+  public void skippedEntity(String name) throws SAXException {
+    writeCode(SKIPPED_ENTITY);
+    writeName(name);
+  }
+
+  public void startDTD(String name, String publicId, String systemId) throws SAXException {
+    writeCode(START_DTD);
+    writeName(name);
+    writeName(publicId);
+    writeName(systemId);
+  }
+
+  public void endDTD() throws SAXException {
+    writeCode(END_DTD);
+  }
+
+  public void startEntity(String name) throws SAXException {
+    writeCode(START_ENTITY);
+    writeName(name);
+  }
+
+  public void endEntity(String name) throws SAXException {
+    writeCode(END_ENTITY);
+    writeName(name);
+  }
+
+  public void startCDATA() throws SAXException {
+    writeCode(START_CDATA);
+  }
+
+  public void endCDATA() throws SAXException {
+    writeCode(END_CDATA);
+  }
+
+  public void comment(char[] ch, int start, int len) throws SAXException {
+    writeCode(COMMENT);
+    writeChars(ch, start, len);
+  }
+
+  /**
+   * Make room for at least n characters in the current block, which is at most BLOCK_SIZE.
+   * Codes, integers and short text never cross the end of a block.
+   */
+  private void ensure(int n) throws SAXException {
+    if (length + n <= block.length) return;
+    if (block.length < BLOCK_SIZE && length + n <= BLOCK_SIZE) {
+      // Small recordings grow their only block, so they do not take a whole block.
+      block = Arrays.copyOf(block, Math.min(BLOCK_SIZE, Math.max(2 * block.length, length + n)));
+      return;
+    }
+    if (blocks.size() == blockLengths.length) {
+      blockLengths = Arrays.copyOf(blockLengths, 2 * blockLengths.length);
+    }
+    blockLengths[blocks.size()] = length;
+    blocks.add(block);
+    blocksSize += length;
+    block = new char[BLOCK_SIZE];
+    length = 0;
+    if (spillThreshold > 0 && 2 * blocksSize > spillThreshold) {
+      spill();
+    }
+  }
+
+  /**
+   * Write the full blocks in memory to the temporary file.
+   */
+  private void spill() throws SAXException {
+    try {
+      if (spillOut == null) {
+        spillFile = File.createTempFile("sax-", ".rec", spillDirectory);
+        spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 2 * BLOCK_SIZE));
+        spillBytes = new byte[2 * BLOCK_SIZE];
+      }
+      for (int i = 0; i < blocks.size(); i++) {
+        int n = blockLengths[i];
+        ByteBuffer.wrap(spillBytes).asCharBuffer().put(blocks.get(i), 0, n);
+        spillOut.writeInt(n);
+        spillOut.write(spillBytes, 0, 2 * n);
+      }
+      spillOut.flush();
+    } catch (IOException e) {
+      throw new SAXException("Could not write SAX recording to " + spillFile, e);
+    }
+    spilledBlocks += blocks.size();
+    spilled += blocksSize;
+    blocks.clear();
+    blocksSize = 0;
+  }
+
+  private void closeSpillFile() {
+    if (spillOut != null) {
+      try {
+        spillOut.close();
+      } catch (IOException e) {
+        // The file is removed anyway.
+      }
+      spillOut = null;
+      spillBytes = null;
+    }
+  }
+
+  private void writeCode(char code) throws SAXException {
+    ensure(1);
+    block[length++] = code;
+  }
+
+  /**
+   * Write a variable-length integer, 15 bits per character, the low bits first.
+   */
+  private void writeInt(int value) throws SAXException {
+    ensure(MAX_INT_SIZE);
+    while ((value & ~0x7FFF) != 0) {
+      block[length++] = (char) ((value & 0x7FFF) | 0x8000);
+      value >>>= 15;
+    }
+    block[length++] = (char) value;
+  }
+
+  private void writeName(String name) throws SAXException {
+    int index;
+    if (name == null) {
+      index = 0;
+    } else {
+      Integer known = nameIndex.get(name);
+      if (known != null) {
+        index = known;
+      } else {
+        if (nameCount == names.length) {
+          names = Arrays.copyOf(names, 2 * nameCount);
+        }
+        index = nameCount++;
+        names[index] = name;
+        nameIndex.put(name, index);
+      }
+    }
+    writeInt(index);
+  }
+
+  private void writeQName(String namespaceURI, String localName, String qName, String type) throws SAXException {
+    Integer first = qNameIndex.get(qName);
+    int index = first != null ? first : -1;
+    while (index >= 0) {
+      String[] known = qNames[index];
+      if (same(known[0], namespaceURI) && same(known[1], localName) && same(known[3], type)) break;
+      index = qNameNext[index];
+    }
+    if (index < 0) {
+      if (qNameCount == qNames.length) {
+        qNames = Arrays.copyOf(qNames, 2 * qNameCount);
+        qNameNext = Arrays.copyOf(qNameNext, 2 * qNameCount);
+      }
+      index = qNameCount++;
+      qNames[index] = new String[] {namespaceURI, localName, qName, type};
+      qNameNext[index] = first != null ? first : -1;
+      qNameIndex.put(qName, index);
+    }
+    writeInt(index);
+  }
+
+  private static boolean same(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Write the number of characters of a string, followed by the characters.
+   */
+  private void writeString(String value) throws SAXException {
+    int len = value.length();
+    writeInt(len);
+    int start = 0;
+    if (len <= CONTIGUOUS_TEXT) {
+      ensure(len);
+    }
+    while (start < len) {
+      ensure(Math.min(len - start, CONTIGUOUS_TEXT));
+      int n = Math.min(len - start, block.length - length);
+      value.getChars(start, start + n, block, length);
+      length += n;
+      start += n;
+    }
+  }
+
+  /**
+   * Write the number of characters, followed by the characters.
+   */
+  private void writeChars(char[] ch, int start, int len) throws SAXException {
+    writeInt(len);
+    int end = start + len;
+    if (len <= CONTIGUOUS_TEXT) {
+      ensure(len);
+    }
+    while (start < end) {
+      ensure(Math.min(end - start, CONTIGUOUS_TEXT));
+      int n = Math.min(end - start, block.length - length);
+      System.arraycopy(ch, start, block, length, n);
+      length += n;
+      start += n;
+    }
+  }
+
+  /* Replay */
+
+  /**
+   * Send the recorded events to a content handler.
+   * Lexical events are only sent if it is also a LexicalHandler.
+   * @see org.apache.excalibur.xml.sax.XMLizable#toSAX(org.xml.sax.ContentHandler)
+   */
+  public void toSAX(ContentHandler contentHandler) throws SAXException {
+    LexicalHandler lexicalHandler = contentHandler instanceof LexicalHandler ? (LexicalHandler) contentHandler : null;
+    Input in = new Input();
+    try {
+      while (in.hasMore()) {
+        char code = in.buf[in.pos++];
+        switch (code) {
+          case START_DOCUMENT:
+            contentHandler.startDocument();
+            break;
+          case END_DOCUMENT:
+            contentHandler.endDocument();
+            break;
+          case START_PREFIX_MAPPING:
+            contentHandler.startPrefixMapping(in.readName(), in.readName());
+            break;
+          case END_PREFIX_MAPPING:
+            contentHandler.endPrefixMapping(in.readName());
+            break;
+          case START_ELEMENT: {
+            String[] element = in.readQName();
+            ReplayAttributes atts = replayAttributes;
+            atts.reset();
+            for (int i = in.readInt(); i > 0; i--) {
+              in.readAttribute(atts);
+            }
+            contentHandler.startElement(element[0], element[1], element[2], atts);
+            break;
+          }
+          case END_ELEMENT: {
+            String[] element = in.readQName();
+            contentHandler.endElement(element[0], element[1], element[2]);
+            break;
+          }
+          case CHARACTERS: {
+            int n = in.readText();
+            contentHandler.characters(in.text, in.textStart, n);
+            break;
+          }
+          case IGNORABLE_WHITESPACE: {
+            int n = in.readText();
+            contentHandler.ignorableWhitespace(in.text, in.textStart, n);
+            break;
+          }
+          case PROCESSING_INSTRUCTION:
+            contentHandler.processingInstruction(in.readName(), in.readString());
+            break;
+          case SKIPPED_ENTITY:
+            contentHandler.skippedEntity(in.readName());
+            break;
+          case START_DTD: {
+            String name = in.readName();
+            String publicId = in.readName();
+            String systemId = in.readName();
+            if (lexicalHandler != null) lexicalHandler.startDTD(name, publicId, systemId);
+            break;
+          }
+          case END_DTD:
+            if (lexicalHandler != null) lexicalHandler.endDTD();
+            break;
+          case START_ENTITY: {
+            String name = in.readName();
+            if (lexicalHandler != null) lexicalHandler.startEntity(name);
+            break;
+          }
+          case END_ENTITY: {
+            String name = in.readName();
+            if (lexicalHandler != null) lexicalHandler.endEntity(name);
+            break;
+          }
+          case START_CDATA:
+            if (lexicalHandler != null) lexicalHandler.startCDATA();
+            break;
+          case END_CDATA:
+            if (lexicalHandler != null) lexicalHandler.endCDATA();
+            break;
+          case COMMENT: {
+            int n = in.readText();
+            if (lexicalHandler != null) lexicalHandler.comment(in.text, in.textStart, n);
+            break;
+          }
+          default:
+            throw new SAXException("Corrupt SAX recording, event code " + (int) code);
+        }
+      }
+    } catch (IOException e) {
+      throw new SAXException("Could not read SAX recording from " + spillFile, e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads the recorded blocks: first those in the temporary file, then the full blocks in memory, then the current block.
+   */
+  private final class Input {
+    char[] buf;
+    int pos = 0;
+    private int limit = 0;
+    /**
+     * The characters of the last text that was read, from textStart.
+     */
+    char[] text;
+    int textStart;
+    private DataInputStream file;
+    private byte[] fileBytes;
+    private int fileBlocks = spilledBlocks;
+    private int nextBlock = 0;
+    private final int blockCount = blocks.size();
+    private final int lastLength = length;
+    private boolean last = false;
+
+    boolean hasMore() throws IOException {
+      while (pos == limit) {
+        if (!refill()) return false;
+      }
+      return true;
+    }
+
+    /**
+     * Go to the next block of the recording.
+     * @return false if there is none.
+     */
+    private boolean refill() throws IOException {
+      if (fileBlocks > 0) {
+        if (file == null) {
+          file = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 2 * BLOCK_SIZE));
+          fileBytes = new byte[2 * BLOCK_SIZE];
+        }
+        int n = file.readInt();
+        file.readFully(fileBytes, 0, 2 * n);
+        // A new block every time, because the attributes of an element may refer to the previous one.
+        buf = new char[n];
+        ByteBuffer.wrap(fileBytes, 0, 2 * n).asCharBuffer().get(buf);
+        fileBlocks--;
+        pos = 0;
+        limit = n;
+        return true;
+      }
+      if (nextBlock < blockCount) {
+        buf = blocks.get(nextBlock);
+        limit = blockLengths[nextBlock];
+        nextBlock++;
+        pos = 0;
+        return true;
+      }
+      if (!last) {
+        last = true;
+        buf = block;
+        limit = lastLength;
+        pos = 0;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Read an integer, which is never split over blocks.
+     */
+    int readInt() throws IOException {
+      if (pos == limit && !hasMore()) {
+        throw new IOException("Unexpected end of SAX recording");
+      }
+      int c = buf[pos++];
+      if (c < 0x8000) {
+        return c;
+      }
+      int value = c & 0x7FFF;
+      for (int shift = 15; c >= 0x8000; shift += 15) {
+        c = buf[pos++];
+        value |= (c & 0x7FFF) << shift;
+      }
+      return value;
+    }
+
+    String readName() throws IOException {
+      return names[readInt()];
+    }
+
+    String[] readQName() throws IOException {
+      return qNames[readInt()];
+    }
+
+    String readString() throws IOException {
+      int n = readText();
+      return new String(text, textStart, n);
+    }
+
+    /**
+     * Read the characters of a text into text, from textStart.
+     * They are not copied if they are in one block, otherwise they are copied into replayChars.
+     * @return The number of characters.
+     */
+    int readText() throws IOException {
+      int n = readInt();
+      if (n > 0 && pos == limit && !hasMore()) {
+        throw new IOException("Unexpected end of SAX recording");
+      }
+      if (limit - pos >= n) {
+        text = buf;
+        textStart = pos;
+        pos += n;
+        return n;
+      }
+      if (replayChars.length < n) {
+        replayChars = new char[Math.max(n, 2 * replayChars.length)];
+      }
+      for (int i = 0; i < n; ) {
+        if (pos == limit && !hasMore()) {
+          throw new IOException("Unexpected end of SAX recording");
+        }
+        int k = Math.min(n - i, limit - pos);
+        System.arraycopy(buf, pos, replayChars, i, k);
+        pos += k;
+        i += k;
+      }
+      text = replayChars;
+      textStart = 0;
+      return n;
+    }
+
+    /**
+     * Read an attribute into atts. A value that is in one block only becomes a string when it is asked for.
+     */
+    void readAttribute(ReplayAttributes atts) throws IOException {
+      String[] name = readQName();
+      int n = readText();
+      if (text == buf) {
+        atts.add(name, null, text, textStart, n);
+      } else {
+        atts.add(name, new String(text, textStart, n), null, 0, 0);
+      }
+    }
+
+    void close() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // Nothing was written.
+        }
+      }
+    }
+  }
+
+  /**
+   * The attributes of an element during replay.
+   * A value can be a reference to the recorded characters, which becomes a string when it is asked for.
+   */
+  private static final class ReplayAttributes implements Attributes {
+    private String[][] attributeNames = new String[8][];
+    private String[] values = new String[8];
+    private char[][] valueChars = new char[8][];
+    private int[] valueStarts = new int[8];
+    private int[] valueLengths = new int[8];
+    private int count = 0;
+
+    /**
+     * Start the attributes of the next element. The old ones are overwritten when they are added.
+     */
+    void reset() {
+      count = 0;
+    }
+
+    /**
+     * Remove the attributes, so they do not keep the recorded characters in memory.
+     */
+    void clear() {
+      Arrays.fill(values, null);
+      Arrays.fill(valueChars, null);
+      count = 0;
+    }
+
+    void add(String[] name, String value, char[] chars, int start, int length) {
+      if (count == attributeNames.length) {
+        int capacity = 2 * count;
+        attributeNames = Arrays.copyOf(attributeNames, capacity);
+        values = Arrays.copyOf(values, capacity);
+        valueChars = Arrays.copyOf(valueChars, capacity);
+        valueStarts = Arrays.copyOf(valueStarts, capacity);
+        valueLengths = Arrays.copyOf(valueLengths, capacity);
+      }
+      attributeNames[count] = name;
+      values[count] = value;
+      valueChars[count] = chars;
+      valueStarts[count] = start;
+      valueLengths[count] = length;
+      count++;
+    }
+
+    public int getLength() {
+      return count;
+    }
+
+    public String getURI(int index) {
+      return index >= 0 && index < count ? attributeNames[index][0] : null;
+    }
+
+    public String getLocalName(int index) {
+      return index >= 0 && index < count ? attributeNames[index][1] : null;
+    }
+
+    public String getQName(int index) {
+      return index >= 0 && index < count ? attributeNames[index][2] : null;
+    }
+
+    public String getType(int index) {
+      return index >= 0 && index < count ? attributeNames[index][3] : null;
+    }
+
+    public String getValue(int index) {
+      if (index < 0 || index >= count) return null;
+      String value = values[index];
+      if (value == null) {
+        value = new String(valueChars[index], valueStarts[index], valueLengths[index]);
+        values[index] = value;
+        valueChars[index] = null;
+      }
+      return value;
+    }
+
+    public int getIndex(String uri, String localName) {
+      for (int i = 0; i < count; i++) {
+        if (same(attributeNames[i][0], uri) && same(attributeNames[i][1], localName)) return i;
+      }
+      return -1;
+    }
+
+    public int getIndex(String qName) {
+      for (int i = 0; i < count; i++) {
+        if (same(attributeNames[i][2], qName)) return i;
+      }
+      return -1;
+    }
+
+    public String getType(String uri, String localName) {
+      return getType(getIndex(uri, localName));
+    }
+
+    public String getType(String qName) {
+      return getType(getIndex(qName));
+    }
+
+    public String getValue(String uri, String localName) {
+      return getValue(getIndex(uri, localName));
+    }
+
+    public String getValue(String qName) {
+      return getValue(getIndex(qName));
+    }
+  }
+
+}